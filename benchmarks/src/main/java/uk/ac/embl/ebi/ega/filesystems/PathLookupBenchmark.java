@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.serce.jnrfuse.struct.FileStat;
+import uk.ac.embl.ebi.ega.utils.EgaArchiveFile;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
+
+/**
+ *
+ * @author asenf
+ *
+ * getattr through the file system at 10, 10k and 1M files in one directory:
+ * path resolution plus filling the stat structure. Sizes come with the file
+ * list, so no archive file is touched.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PathLookupBenchmark {
+
+    @Param({"10", "10000", "1000000"})
+    public int entries;
+
+    private EgaMemoryCIPFuse fs;
+    private String[] paths;
+    private FileStat stat;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        EgaArchiveFile[] files = new EgaArchiveFile[this.entries];
+        this.paths = new String[this.entries];
+        for (int i=0; i<this.entries; i++) {
+            String name = String.format("EGAF%011d.bam", 100000 + i);
+            files[i] = new EgaArchiveFile(name, "/archive/" + (i / 1000) + "/" + name + ".cip", "key", 256);
+            files[i].setFileSize(1000 + i);
+            this.paths[i] = "/" + name;
+        }
+        File ini = File.createTempFile("bench", ".ini");
+        ini.deleteOnExit();
+        try (FileWriter w = new FileWriter(ini)) {
+            w.write("[cache]\nsize_mb = 0\n[readahead]\nmax_kb = 0\n");
+        }
+        this.fs = new EgaMemoryCIPFuse(files, "/tmp/unused", new FuseConfig(ini.getPath()));
+        this.stat = FileStat.of(Pointer.wrap(Runtime.getSystemRuntime(), ByteBuffer.allocateDirect(256)));
+    }
+
+    @Benchmark
+    public int getattr() {
+        this.next = (this.next + 7919) % this.entries;
+        return this.fs.getattr(this.paths[this.next], this.stat);
+    }
+}
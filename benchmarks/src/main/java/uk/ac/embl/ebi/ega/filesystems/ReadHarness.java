@@ -0,0 +1,353 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * End-to-end read benchmark without a kernel mount: the FUSE callbacks of
+ * EgaMemoryCIPFuse (getattr, open, read, release) are called directly with
+ * native buffers, on a synthetic corpus of .cip files encrypted with
+ * CipherStream_256. No database is involved; with -w the corpus is read over
+ * HTTP (HttpStorage) from an in-process stub server.
+ *
+ *   java -cp "target/benchmarks.jar:../lib/*" uk.ac.embl.ebi.ega.filesystems.ReadHarness \
+ *        -n 8 -s 64m -t 1,4,16 -x seq,rand4k,region -i ../fuse.ini
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import ru.serce.jnrfuse.struct.FileStat;
+import ru.serce.jnrfuse.struct.FuseFileInfo;
+import uk.ac.embl.ebi.ega.utils.EgaArchiveFile;
+import uk.ac.embl.ebi.ega.utils.EncryptedCorpus;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
+import uk.ac.embl.ebi.ega.utils.HttpStub;
+
+/**
+ *
+ * @author asenf
+ */
+public class ReadHarness {
+
+    private static final Runtime RUNTIME = Runtime.getSystemRuntime();
+
+    private final EgaMemoryCIPFuse fs;
+    private final String[] paths;
+    private final long[] sizes;
+    private final int blockSize;  // Request size of sequential and region reads
+    private final int regionSize;
+    private final long duration;  // ns per run (new reads are started until then)
+
+    public ReadHarness(EgaMemoryCIPFuse fs, String[] paths, long[] sizes, int blockSize, int regionSize, long duration) {
+        this.fs = fs;
+        this.paths = paths;
+        this.sizes = sizes;
+        this.blockSize = blockSize;
+        this.regionSize = regionSize;
+        this.duration = duration;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("n", true, "number of files (8)");
+        options.addOption("s", true, "file sizes, cycled through: e.g. 64m or 1m,200m (64m)");
+        options.addOption("c", true, "corpus directory, kept and reused (default: temporary)");
+        options.addOption("i", true, "ini file for the file system ([cache], [readahead], ...)");
+        options.addOption("k", true, "key bits, 128 or 256 (256)");
+        options.addOption("t", true, "thread counts, e.g. 1,4,16 (1,4,16)");
+        options.addOption("x", true, "read mixes: seq, rand4k, region, getattr (seq,rand4k,region)");
+        options.addOption("b", true, "request size of seq and region reads (128k)");
+        options.addOption("r", true, "region size (1m)");
+        options.addOption("d", true, "seconds per mix and thread count (10)");
+        options.addOption("w", true, "read over HTTP from an in-process stub, with this latency per request in ms (e.g. 0)");
+        options.addOption("h", false, "help");
+
+        CommandLine cmd;
+        try {
+            cmd = new BasicParser().parse(options, args);
+        } catch (ParseException ex) {
+            System.out.println(ex.getMessage());
+            cmd = null;
+        }
+        if (cmd == null || cmd.hasOption("h")) {
+            new HelpFormatter().printHelp("ReadHarness", options);
+            return;
+        }
+
+        int count = Integer.parseInt(cmd.getOptionValue("n", "8"));
+        String[] sizeList = cmd.getOptionValue("s", "64m").split(",");
+        int bits = Integer.parseInt(cmd.getOptionValue("k", "256"));
+        String[] threadList = cmd.getOptionValue("t", "1,4,16").split(",");
+        String[] mixes = cmd.getOptionValue("x", "seq,rand4k,region").split(",");
+        int blockSize = (int) parseSize(cmd.getOptionValue("b", "128k"));
+        int regionSize = (int) parseSize(cmd.getOptionValue("r", "1m"));
+        long duration = Long.parseLong(cmd.getOptionValue("d", "10")) * 1000000000L;
+
+        // Corpus: file i is EGAF<i>.bam, encrypted from seeded random data
+        boolean temporary = !cmd.hasOption("c");
+        File dir = temporary?EncryptedCorpus.tempDir():new File(cmd.getOptionValue("c"));
+        dir.mkdirs();
+        EgaArchiveFile[] files = new EgaArchiveFile[count];
+        String[] paths = new String[count];
+        long[] sizes = new long[count];
+        long total = 0, start = System.nanoTime();
+        for (int i=0; i<count; i++) {
+            String name = String.format("EGAF%011d.bam", i);
+            sizes[i] = parseSize(sizeList[i % sizeList.length].trim());
+            File f = new File(dir, name + ".cip");
+            if (f.length() != sizes[i] + 16) // 16 byte IV in front of the data
+                EncryptedCorpus.encrypt(dir, name, EncryptedCorpus.plaintext((int) sizes[i], i), bits);
+            files[i] = new EgaArchiveFile(name, f.getPath(), EncryptedCorpus.PASSWORD, bits);
+            paths[i] = "/" + name;
+            total += sizes[i];
+        }
+        System.out.printf("corpus: %d files, %.1f MB in %s (%.1f s)%n", count, total / 1048576.0, dir,
+                (System.nanoTime() - start) / 1e9);
+
+        HttpStub stub = null;
+        if (cmd.hasOption("w")) {
+            stub = new HttpStub(dir, Long.parseLong(cmd.getOptionValue("w")));
+            for (int i=0; i<count; i++)
+                files[i].setFileArchivePath(stub.url(files[i].getFileName() + ".cip"));
+            System.out.println("http: " + stub.url(""));
+        }
+
+        FuseConfig config = new FuseConfig(cmd.getOptionValue("i"));
+        EgaMemoryCIPFuse fs = new EgaMemoryCIPFuse(files, "/tmp/unused", config);
+        ReadHarness harness = new ReadHarness(fs, paths, sizes, blockSize, regionSize, duration);
+
+        System.out.printf("%-8s %7s %10s %10s %10s %10s %10s %10s%n",
+                "mix", "threads", "ops", "MB/s", "IOPS", "p50 us", "p99 us", "p999 us");
+        try {
+            for (String mix : mixes) {
+                for (String threads : threadList) {
+                    Result r = harness.run(mix.trim(), Integer.parseInt(threads.trim()));
+                    System.out.printf("%-8s %7s %10d %10.1f %10.0f %10.1f %10.1f %10.1f%n",
+                            mix, threads, r.ops, r.megabytesPerSecond(), r.opsPerSecond(),
+                            r.percentile(0.5) / 1e3, r.percentile(0.99) / 1e3, r.percentile(0.999) / 1e3);
+                }
+            }
+        } finally {
+            if (stub != null) {
+                System.out.printf("http: %d requests, %.1f MB, %d connections%n", stub.getRequests(),
+                        stub.getBytes() / 1048576.0, stub.getConnections());
+                stub.stop();
+            }
+            if (temporary)
+                EncryptedCorpus.delete(dir);
+        }
+        System.exit(0); // Pools of the file system are not shut down without a mount
+    }
+
+    // One mix on [threads] threads for the configured duration
+    public Result run(final String mix, int threads) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>();
+        final long start = System.nanoTime(), end = start + this.duration;
+        for (int t=0; t<threads; t++) {
+            final long seed = t;
+            futures.add(pool.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws IOException {
+                    Worker w = new Worker(new Random(seed));
+                    while (System.nanoTime() < end) {
+                        switch (mix) {
+                            case "seq": w.sequential(); break;
+                            case "rand4k": w.random(4096, 4096); break;
+                            case "region": w.region(); break;
+                            case "getattr": w.getattr(); break;
+                            default: throw new IllegalArgumentException("unknown mix: " + mix);
+                        }
+                    }
+                    w.close();
+                    return w.result;
+                }
+            }));
+        }
+        Result total = new Result();
+        try {
+            for (Future<Result> f : futures)
+                total.add(f.get());
+        } finally {
+            pool.shutdown();
+        }
+        total.elapsed = System.nanoTime() - start; // A whole-file read may overrun the end
+        return total;
+    }
+
+    // ************************************************************************* Worker
+
+    // One thread: its own read buffer and handles (one per file, opened on first use)
+    private class Worker {
+        private final Random random;
+        private final Pointer buffer;
+        private final FileStat stat;
+        private final FuseFileInfo[] handles = new FuseFileInfo[paths.length];
+        private final Result result = new Result();
+
+        private Worker(Random random) {
+            this.random = random;
+            this.buffer = Pointer.wrap(RUNTIME, ByteBuffer.allocateDirect(Math.max(blockSize, 4096)));
+            this.stat = FileStat.of(Pointer.wrap(RUNTIME, ByteBuffer.allocateDirect(256)));
+        }
+
+        // Whole file, front to back, as cp or md5sum would: getattr, open, reads, release
+        private void sequential() throws IOException {
+            int i = this.random.nextInt(paths.length);
+            check(fs.getattr(paths[i], this.stat), "getattr");
+            FuseFileInfo fi = newFileInfo();
+            check(fs.open(paths[i], fi), "open");
+            for (long offset=0; offset<sizes[i]; ) {
+                int n = read(i, fi, offset, blockSize);
+                if (n == 0)
+                    break;
+                offset += n;
+            }
+            fs.release(paths[i], fi);
+        }
+
+        // One read of [size] bytes at a random [align]ed offset of a random file
+        private void random(int size, int align) throws IOException {
+            int i = this.random.nextInt(paths.length);
+            long blocks = Math.max(1, (sizes[i] - size) / align);
+            read(i, handle(i), (long) (this.random.nextDouble() * blocks) * align, size);
+        }
+
+        // A region query: [regionSize] bytes from a random offset, in requests of blockSize
+        private void region() throws IOException {
+            int i = this.random.nextInt(paths.length);
+            long offset = (long) (this.random.nextDouble() * Math.max(1, sizes[i] - regionSize));
+            long end = Math.min(sizes[i], offset + regionSize);
+            FuseFileInfo fi = handle(i);
+            while (offset < end) {
+                int n = read(i, fi, offset, (int) Math.min(blockSize, end - offset));
+                if (n == 0)
+                    break;
+                offset += n;
+            }
+        }
+
+        private void getattr() throws IOException {
+            int i = this.random.nextInt(paths.length);
+            long t = System.nanoTime();
+            check(fs.getattr(paths[i], this.stat), "getattr");
+            this.result.record(System.nanoTime() - t, 0);
+        }
+
+        private int read(int i, FuseFileInfo fi, long offset, int size) throws IOException {
+            long t = System.nanoTime();
+            int n = fs.read(paths[i], this.buffer, size, offset, fi);
+            this.result.record(System.nanoTime() - t, Math.max(n, 0));
+            if (n < 0)
+                throw new IOException("read " + paths[i] + " at " + offset + ": " + n);
+            return n;
+        }
+
+        private FuseFileInfo handle(int i) throws IOException {
+            if (this.handles[i] == null) {
+                FuseFileInfo fi = newFileInfo();
+                check(fs.open(paths[i], fi), "open");
+                this.handles[i] = fi;
+            }
+            return this.handles[i];
+        }
+
+        private void close() {
+            for (int i=0; i<this.handles.length; i++) {
+                if (this.handles[i] != null)
+                    fs.release(paths[i], this.handles[i]);
+            }
+        }
+
+        private FuseFileInfo newFileInfo() {
+            return FuseFileInfo.of(Pointer.wrap(RUNTIME, ByteBuffer.allocateDirect(128)));
+        }
+
+        private void check(int rc, String op) throws IOException {
+            if (rc != 0)
+                throw new IOException(op + " failed: " + rc);
+        }
+    }
+
+    // ************************************************************************* Result
+
+    // Operation count, bytes and every latency sample (ns) of a run
+    public static class Result {
+        private long ops = 0;
+        private long bytes = 0;
+        private long elapsed = 0;
+        private long[] latencies = new long[1024];
+
+        private void record(long nanos, long n) {
+            if (this.ops == this.latencies.length)
+                this.latencies = Arrays.copyOf(this.latencies, this.latencies.length * 2);
+            this.latencies[(int) this.ops++] = nanos;
+            this.bytes += n;
+        }
+
+        private void add(Result other) {
+            long[] merged = Arrays.copyOf(this.latencies, (int) (this.ops + other.ops));
+            System.arraycopy(other.latencies, 0, merged, (int) this.ops, (int) other.ops);
+            this.latencies = merged;
+            this.ops += other.ops;
+            this.bytes += other.bytes;
+        }
+
+        public double megabytesPerSecond() {
+            return this.bytes / 1048576.0 / (this.elapsed / 1e9);
+        }
+
+        public double opsPerSecond() {
+            return this.ops / (this.elapsed / 1e9);
+        }
+
+        // Latency (ns) at quantile q, 0 < q <= 1
+        public long percentile(double q) {
+            if (this.ops == 0)
+                return 0;
+            long[] sorted = Arrays.copyOf(this.latencies, (int) this.ops);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.min(this.ops - 1, Math.ceil(q * this.ops) - 1)];
+        }
+    }
+
+    // 64m, 4k, 1g or plain bytes
+    private static long parseSize(String s) {
+        String v = s.toLowerCase();
+        long unit = 1;
+        if (v.endsWith("k")) unit = 1L << 10;
+        else if (v.endsWith("m")) unit = 1L << 20;
+        else if (v.endsWith("g")) unit = 1L << 30;
+        if (unit > 1)
+            v = v.substring(0, v.length() - 1);
+        return Long.parseLong(v) * unit;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author asenf
+ *
+ * CTR counter arithmetic used on every seek: adding a block offset to the IV.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CounterBenchmark {
+
+    @Param({"1", "65536", "1099511627776"})
+    public long increment;
+
+    private final byte[] iv = new byte[16];
+    private final byte[] counter = new byte[16];
+
+    @Setup
+    public void setup() {
+        for (int i=0; i<16; i++)
+            this.iv[i] = (byte) (0xF0 + i); // Carries across several bytes
+    }
+
+    @Benchmark
+    public byte[] byteIncrementFast() {
+        System.arraycopy(this.iv, 0, this.counter, 0, 16);
+        SeekableCipherStream_256.byte_increment_fast(this.counter, this.increment);
+        return this.counter;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Test data for the benchmarks: random plaintext, encrypted into .cip files
+ * with CipherStream_256 exactly as in the archive.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ *
+ * @author asenf
+ */
+public class EncryptedCorpus {
+
+    public static final String PASSWORD = "benchmark-password";
+
+    public static byte[] plaintext(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    // Encrypt [plain] into [dir]/[name].cip
+    public static File encrypt(File dir, String name, byte[] plain, int bits) throws IOException {
+        File f = new File(dir, name + ".cip");
+        CipherStream_256 cs = new CipherStream_256(new ByteArrayInputStream(plain), new FileOutputStream(f), 4096,
+                PASSWORD.toCharArray(), true, bits);
+        cs.run(); // In this thread: the file is complete on return
+        return f;
+    }
+
+    public static File tempDir() throws IOException {
+        File dir = Files.createTempDirectory("ega-bench").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    public static void delete(File dir) {
+        File[] files = dir.listFiles();
+        for (int i=0; files!=null && i<files.length; i++)
+            files[i].delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author asenf
+ *
+ * Name lookup in a directory's file table at 10, 10k and 1M files: hits in
+ * a scattered order, and misses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FileTableBenchmark {
+
+    @Param({"10", "10000", "1000000"})
+    public int entries;
+
+    private FileTable table;
+    private String[] names;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        this.table = new FileTable(this.entries);
+        this.names = new String[this.entries];
+        for (int i=0; i<this.entries; i++) {
+            this.names[i] = name(i);
+            this.table.add(this.names[i], "/archive/" + (i / 1000) + "/" + this.names[i] + ".cip", "key", 256, i, 0);
+        }
+        this.table.trim();
+    }
+
+    static String name(int i) {
+        return String.format("EGAF%011d.bam", 100000 + i);
+    }
+
+    @Benchmark
+    public int findHit() {
+        this.next = (this.next + 7919) % this.entries;
+        return this.table.find(this.names[this.next]);
+    }
+
+    @Benchmark
+    public int findMiss() {
+        return this.table.find("EGAF99999999999.bam");
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * In-process HTTP server for the files of a directory, as HttpStorage
+ * expects them from an object store: HEAD with Content-Length and
+ * Last-Modified, ranged GETs answered with 206 and Content-Range, basic
+ * authentication. An optional delay per request stands in for network
+ * latency. Counts requests and client connections.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author asenf
+ */
+public class HttpStub implements HttpHandler {
+    public static final String USER = "ega";
+    public static final String PASSWORD = "stub-password";
+
+    private final File dir;
+    private final long latencyMillis;
+    private final String authorization;
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final Set<String> connections = ConcurrentHashMap.newKeySet();
+
+    public HttpStub(File dir, long latencyMillis) throws IOException {
+        this.dir = dir;
+        this.latencyMillis = latencyMillis;
+        this.authorization = "Basic " + Base64.getEncoder().encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 256);
+        this.workers = Executors.newFixedThreadPool(64);
+        this.server.setExecutor(this.workers);
+        this.server.createContext("/", this);
+        this.server.start();
+    }
+
+    // URL of a file of the directory, with the credentials of the stub
+    public String url(String name) {
+        return "http://" + USER + ":" + PASSWORD + "@127.0.0.1:" + this.server.getAddress().getPort() + "/" + name;
+    }
+
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public int getConnections() {
+        return this.connections.size();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.workers.shutdownNow();
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            this.requests.incrementAndGet();
+            this.connections.add(exchange.getRemoteAddress().toString());
+            if (this.latencyMillis > 0)
+                Thread.sleep(this.latencyMillis);
+            if (!this.authorization.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+            File file = new File(this.dir, exchange.getRequestURI().getPath().substring(1));
+            if (!file.isFile()) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            long length = file.length();
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            exchange.getResponseHeaders().add("Last-Modified", format.format(new Date(file.lastModified())));
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            // Only single ranges: bytes=from-to
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range == null || !range.startsWith("bytes=")) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            String[] bounds = range.substring(6).split("-");
+            long from = Long.parseLong(bounds[0]);
+            long to = Math.min(Long.parseLong(bounds[1]), length - 1);
+            if (from > to) {
+                exchange.getResponseHeaders().add("Content-Range", "bytes */" + length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            byte[] data = new byte[(int) (to - from + 1)];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(from);
+                raf.readFully(data);
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + length);
+            exchange.sendResponseHeaders(206, data.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(data);
+            }
+            this.bytes.addAndGet(data.length);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.util.concurrent.TimeUnit;
+import javax.crypto.SecretKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author asenf
+ *
+ * Glue.getKey for 128 and 256 bit keys: repeated calls with one password (the
+ * key cache) and a new password per call (full PBKDF2 derivation).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+
+    @Param({"128", "256"})
+    public int bits;
+
+    private final char[] password = EncryptedCorpus.PASSWORD.toCharArray();
+    private long unique = 0;
+
+    @Benchmark
+    public SecretKey cached() {
+        return Glue.getInstance().getKey(this.password, this.bits);
+    }
+
+    @Benchmark
+    public SecretKey derived() {
+        return Glue.getInstance().getKey((EncryptedCorpus.PASSWORD + this.unique++).toCharArray(), this.bits);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.seekablestream.SeekableStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ * @author asenf
+ *
+ * Decrypting reads of an 8 MB .cip file: seek + read(byte[]) and positional
+ * read(long, ByteBuffer) at several sizes and (block-aligned or not) offsets,
+ * and single-byte read(), over a FileChannel or a memory-mapped source.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeekableCipherStreamBenchmark {
+
+    private static final int FILE_SIZE = 8 << 20;
+
+    @Param({"4096", "131072", "1048576"})
+    public int size;
+
+    @Param({"0", "17", "4194301"})
+    public long offset;
+
+    @Param({"channel", "mmap"})
+    public String source;
+
+    private File dir;
+    private SeekableCipherStream_256 stream;
+    private byte[] buffer;
+    private ByteBuffer direct;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.dir = EncryptedCorpus.tempDir();
+        File f = EncryptedCorpus.encrypt(this.dir, "data", EncryptedCorpus.plaintext(FILE_SIZE, 1), 256);
+        SeekableStream in = this.source.equals("mmap")?new SeekableMappedFileStream(f):new SeekableChannelStream(f);
+        this.stream = new SeekableCipherStream_256(in, EncryptedCorpus.PASSWORD.toCharArray(), 65535, 256);
+        this.buffer = new byte[this.size];
+        this.direct = ByteBuffer.allocateDirect(this.size);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.stream.close();
+        EncryptedCorpus.delete(this.dir);
+    }
+
+    @Benchmark
+    public int seekRead() throws IOException {
+        this.stream.seek(this.offset);
+        int n = 0;
+        while (n < this.size) {
+            int count = this.stream.read(this.buffer, n, this.size - n);
+            if (count < 0)
+                break;
+            n += count;
+        }
+        return n;
+    }
+
+    @Benchmark
+    public int positionalRead() throws IOException {
+        this.direct.clear();
+        long position = this.offset;
+        while (this.direct.hasRemaining()) {
+            int count = this.stream.read(position, this.direct);
+            if (count < 0)
+                break;
+            position += count;
+        }
+        return this.direct.position();
+    }
+
+    // 4096 single-byte reads after one seek (size is not used)
+    @Benchmark
+    @OperationsPerInvocation(4096)
+    public void singleByteRead(Blackhole bh) throws IOException {
+        this.stream.seek(this.offset);
+        for (int i=0; i<4096; i++)
+            bh.consume(this.stream.read());
+    }
+}
@@ -16,6 +16,7 @@
 
 package uk.ac.embl.ebi.ega.egafuselayer;
 
+import java.io.File;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.BasicParser;
@@ -24,8 +25,11 @@ import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import uk.ac.embl.ebi.ega.filesystems.EgaMemoryCIPFuse;
+import uk.ac.embl.ebi.ega.utils.ArchiveCatalogue;
+import uk.ac.embl.ebi.ega.utils.CatalogueSnapshot;
 import uk.ac.embl.ebi.ega.utils.DatabaseExecutor;
 import uk.ac.embl.ebi.ega.utils.EgaArchiveFile;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
 
 /**
  *
@@ -56,6 +60,8 @@ public class EgaFUSELayer {
         options.addOption("k", true, "bits"); // Encryption Bits
         options.addOption("p", true, "password"); // Archive Password
         options.addOption("t", false, "test"); // Test Option
+        options.addOption("o", true, "options"); // FUSE mount options (added to [mount] of the INI file)
+        options.addOption("D", false, "debug"); // FUSE debug output
 
         // Option Parameters Default Values
         String mountpoint = "";
@@ -66,6 +72,8 @@ public class EgaFUSELayer {
         String bits = "256";
         String password = null;
         boolean test = false;
+        String mountOptions = null;
+        boolean debug = false;
         
         // Parse Parameters
         CommandLineParser parser = new BasicParser();
@@ -88,39 +96,58 @@ public class EgaFUSELayer {
                 password = cmd.getOptionValue("p");
             if (cmd.hasOption("t"))
                 test = true;
+            if (cmd.hasOption("o"))
+                mountOptions = cmd.getOptionValue("o");
+            if (cmd.hasOption("D"))
+                debug = true;
             
         } catch (ParseException ex) {
-            System.out.println("Unrecognized Parameter. Use '-m'  '-d'  '-u'  '-l'  '-i'  '-k'  '-p'.");
+            System.out.println("Unrecognized Parameter. Use '-m'  '-d'  '-u'  '-l'  '-i'  '-k'  '-p'  '-o'  '-D'.");
             Logger.getLogger(EgaFUSELayer.class.getName()).log(Level.SEVERE, null, ex);
         }
 
         // ---------------------------------------------------------------------
-        // Database: get files to be included; also specify a key and encryption bits, if specified
+        // Database: catalogue of datasets and files (potentially limited by user
+        // and/or dataset); also specify a key and encryption bits, if specified
         int AES_bits = Integer.parseInt(bits);
-        EgaArchiveFile[] files = getFiles(path, ini, user, password, AES_bits);
+        DatabaseExecutor dbe = new DatabaseExecutor(iniPath(path, ini), user, password, AES_bits);
         if (test) { // Just test database
-            System.out.println("files: " + (files==null));
-            for (EgaArchiveFile f: files)
-                System.out.println("  " + f.getFileArchivePath() + "; " + f.getFileName());
+            String[] datasets = dbe.listDatasets();
+            System.out.println("datasets: " + (datasets==null));
+            for (String d: datasets) {
+                if (!dataset.equals("*") && !dataset.equals(d))
+                    continue;
+                System.out.println(d);
+                EgaArchiveFile[] files = dbe.listFiles(d);
+                for (int i=0; files!=null && i<files.length; i++)
+                    System.out.println("  " + files[i].getFileArchivePath() + "; " + files[i].getFileName());
+            }
             return;
         } 
         
         // ---------------------------------------------------------------------
-        // Start the FUSE file system - instatiate each individual file
-        EgaMemoryCIPFuse fs = new EgaMemoryCIPFuse(files, mountpoint);
+        // Start the FUSE file system - one directory per dataset, files are
+        // instantiated when a dataset directory is first used. With a snapshot
+        // configured, the tree is built from the last run's catalogue and
+        // revalidated against the database after mounting
+        FuseConfig config = new FuseConfig(iniPath(path, ini));
+        ArchiveCatalogue catalogue = dbe;
+        String snapshot = config.get("catalogue", "snapshot", "");
+        if (snapshot.length() > 0)
+            catalogue = new CatalogueSnapshot(dbe, new File(snapshot), user, password);
+        EgaMemoryCIPFuse fs = new EgaMemoryCIPFuse(catalogue, dataset, mountpoint, config);
+        fs.getMountOptions().add(mountOptions);
+        if (debug)
+            fs.getMountOptions().setDebug(true);
         fs.run();
     }
 
-    // Connect to DB; Query for files; return list
-    private static EgaArchiveFile[] getFiles(String iniPath, String iniName, String email, String password, int AES_bits) {
-        String path = iniPath; // Build path to ini file from parameters
+    // Build path to ini file from parameters
+    private static String iniPath(String iniPath, String iniName) {
+        String path = iniPath;
         if (path.length() > 0 && !path.endsWith("/")) path += "/";
         path += iniName;
-        DatabaseExecutor dbe = new DatabaseExecutor(path, email, password, AES_bits);
-        
-        // Obtain files (potentially limited by user and/or dataset)
-        EgaArchiveFile[] result = dbe.getFilesByEmail(email);        
-        return result;
+        return path;
     }
     
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Kernel page cache treatment of an opened file, set in its fuse_file_info:
+ * keep_cache keeps the plaintext cached across opens (archive files do not
+ * change in place); direct_io bypasses the page cache, for files that are
+ * only ever streamed through once and would just evict everything else.
+ * Decided per open from the file name, its size and the client's flags:
+ *
+ *   1. O_DIRECT from the client (if honoured)           -> direct_io
+ *   2. name ends with a keep_cache_extensions entry     -> keep_cache
+ *   3. name ends with a direct_io_extensions entry, or
+ *      size >= direct_io_min_mb                         -> direct_io
+ *   4. otherwise                                        -> keep_cache, if enabled
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.nio.ByteOrder;
+import java.util.Locale;
+import jnr.ffi.Pointer;
+import jnr.ffi.Struct;
+import ru.serce.jnrfuse.struct.FuseFileInfo;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
+
+/**
+ *
+ * @author asenf
+ */
+public class CachePolicy {
+    public static final int NONE = 0;
+    public static final int KEEP_CACHE = 1;
+    public static final int DIRECT_IO = 2;
+
+    // fuse_file_info has 'unsigned int direct_io:1, keep_cache:1, ...' in the
+    // word right before fh; jnr-fuse 0.3 does not map these bits correctly
+    private static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+    private static final int DIRECT_IO_BIT = BIG_ENDIAN?(1 << 31):1;
+    private static final int KEEP_CACHE_BIT = BIG_ENDIAN?(1 << 30):2;
+
+    private static final int O_DIRECT = oDirect();
+
+    private final boolean keepCache;
+    private final boolean honourODirect;
+    private final long directIoMinSize; // 0: no size limit
+    private final String[] keepCacheExtensions;
+    private final String[] directIoExtensions;
+
+    public CachePolicy(FuseConfig config) {
+        this.keepCache = config.getBoolean("cache_policy", "keep_cache", true);
+        this.honourODirect = config.getBoolean("cache_policy", "o_direct", true);
+        this.directIoMinSize = config.getLong("cache_policy", "direct_io_min_mb", 0) << 20;
+        this.keepCacheExtensions = extensions(config.get("cache_policy", "keep_cache_extensions", ".bai,.crai,.csi,.tbi,.fai"));
+        this.directIoExtensions = extensions(config.get("cache_policy", "direct_io_extensions", ""));
+    }
+
+    // KEEP_CACHE, DIRECT_IO or NONE for opening [name] ([size] bytes) with open(2) [flags]
+    public int choose(String name, long size, int flags) {
+        if (this.honourODirect && (flags & O_DIRECT) != 0)
+            return DIRECT_IO;
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (endsWith(lower, this.keepCacheExtensions))
+            return KEEP_CACHE;
+        if (endsWith(lower, this.directIoExtensions) || (this.directIoMinSize > 0 && size >= this.directIoMinSize))
+            return DIRECT_IO;
+        return this.keepCache?KEEP_CACHE:NONE;
+    }
+
+    // Set the bits of [decision] in the native fuse_file_info of an open()
+    public static void apply(FuseFileInfo fi, int decision) {
+        Pointer memory = Struct.getMemory(fi);
+        long offset = fi.fh.offset() - 4;
+        int word = memory.getInt(offset) & ~(DIRECT_IO_BIT | KEEP_CACHE_BIT);
+        if ((decision & DIRECT_IO) != 0)
+            word |= DIRECT_IO_BIT;
+        if ((decision & KEEP_CACHE) != 0)
+            word |= KEEP_CACHE_BIT;
+        memory.putInt(offset, word);
+    }
+
+    private static boolean endsWith(String name, String[] extensions) {
+        for (String e : extensions) {
+            if (name.endsWith(e))
+                return true;
+        }
+        return false;
+    }
+
+    private static String[] extensions(String list) {
+        if (list.trim().length() == 0)
+            return new String[0];
+        String[] result = list.toLowerCase(Locale.ROOT).split(",");
+        for (int i=0; i<result.length; i++)
+            result[i] = result[i].trim();
+        return result;
+    }
+
+    // O_DIRECT is not the same on all Linux architectures
+    private static int oDirect() {
+        String arch = System.getProperty("os.arch", "");
+        if (arch.startsWith("aarch64") || arch.startsWith("arm"))
+            return 0200000;
+        if (arch.startsWith("ppc"))
+            return 0400000;
+        return 040000;
+    }
+}
@@ -18,6 +18,9 @@ package uk.ac.embl.ebi.ega.filesystems;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import com.kenai.jffi.MemoryIO;
 import jnr.ffi.Pointer;
 import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
@@ -30,20 +33,52 @@ import ru.serce.jnrfuse.struct.FuseFileInfo;
 
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import net.sf.samtools.seekablestream.SeekableFileStream;
 import net.sf.samtools.seekablestream.SeekableStream;
+import uk.ac.embl.ebi.ega.utils.ArchiveCatalogue;
+import uk.ac.embl.ebi.ega.utils.CiphertextDiskCache;
+import uk.ac.embl.ebi.ega.utils.DecryptedBlockCache;
+import uk.ac.embl.ebi.ega.utils.DirectBufferPool;
 import uk.ac.embl.ebi.ega.utils.EgaArchiveFile;
+import uk.ac.embl.ebi.ega.utils.FileTable;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
+import uk.ac.embl.ebi.ega.utils.IoTrace;
+import uk.ac.embl.ebi.ega.utils.MaterializedFiles;
+import uk.ac.embl.ebi.ega.utils.ParallelCtrDecryptor;
+import uk.ac.embl.ebi.ega.utils.PositionalReadable;
+import uk.ac.embl.ebi.ega.utils.ReadAhead;
+import uk.ac.embl.ebi.ega.utils.RegionIndex;
 import uk.ac.embl.ebi.ega.utils.SeekableCipherStream_256;
+import uk.ac.embl.ebi.ega.utils.StorageBackends;
 
 public class EgaMemoryCIPFuse extends FuseStubFS {
     
     // ************************************************************************* MemoryDirectory
     
     private class MemoryDirectory extends MemoryPath {
-        private List<MemoryPath> contents = new ArrayList<>();
+        // Children by name: lookups need neither a lock nor a scan
+        private final ConcurrentHashMap<String, MemoryPath> contents = new ConcurrentHashMap<>();
+        // Catalogue files (null: none); a node for one of them is only
+        // created when it is looked up, and is not kept
+        volatile FileTable table = null;
 
         private MemoryDirectory(String name) {
             super(name);
@@ -53,41 +88,37 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
             super(name, parent);
         }
 
-        public synchronized void add(MemoryPath p) {
-            contents.add(p);
+        // A name that already exists is not replaced (first one wins)
+        public void add(MemoryPath p) {
             p.parent = this;
+            FileTable t = this.table;
+            if (t != null && t.find(p.name) >= 0) {
+                return;
+            }
+            if (contents.putIfAbsent(p.name, p) == null) {
+                index(p);
+            }
         }
 
-        private synchronized void deleteChild(MemoryPath child) {
-            contents.remove(child);
+        private void deleteChild(MemoryPath child) {
+            if (contents.remove(child.name, child)) {
+                unindex(child);
+            } else if (child instanceof MemoryFile && this.table != null) {
+                int row = this.table.find(child.name);
+                if (row >= 0) {
+                    this.table.delete(row);
+                }
+            }
         }
 
-        @Override
-        protected MemoryPath find(String path) {
-            if (super.find(path) != null) {
-                return super.find(path);
-            }
-            while (path.startsWith("/")) {
-                path = path.substring(1);
+        private MemoryPath lookup(String name) {
+            MemoryPath p = contents.get(name);
+            if (p != null) {
+                return p;
             }
-            synchronized (this) {
-                if (!path.contains("/")) {
-                    for (MemoryPath p : contents) {
-                        if (p.name.equals(path)) {
-                            return p;
-                        }
-                    }
-                    return null;
-                }
-                String nextName = path.substring(0, path.indexOf("/"));
-                String rest = path.substring(path.indexOf("/"));
-                for (MemoryPath p : contents) {
-                    if (p.name.equals(nextName)) {
-                        return p.find(rest);
-                    }
-                }
-            }
-            return null;
+            FileTable t = this.table;
+            int row = (t == null)?-1:t.find(name);
+            return (row < 0)?null:new MemoryFile(name, t, row, this);
         }
 
         @Override
@@ -95,8 +126,8 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
             stat.st_mode.set(FileStat.S_IFDIR);
         }
 
-        private synchronized void mkdir(String lastComponent) {
-            contents.add(new MemoryDirectory(lastComponent, this));
+        private void mkdir(String lastComponent) {
+            add(new MemoryDirectory(lastComponent, this));
         }
 
         /*
@@ -105,94 +136,426 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
         }
         */
 
-        public synchronized void read(Pointer buf, FuseFillDir filler) {
-            for (MemoryPath p : contents) {
+        public void read(final Pointer buf, final FuseFillDir filler) {
+            for (MemoryPath p : contents.values()) {
                 filler.apply(buf, p.name, null, 0);
             }
+            FileTable t = this.table;
+            if (t != null) {
+                t.forEachName(new ObjIntConsumer<String>() {
+                    @Override
+                    public void accept(String name, int row) {
+                        filler.apply(buf, name, null, 0);
+                    }
+                });
+            }
         }
     }
     
+    // ************************************************************************* DatasetDirectory
+
+    // One dataset below the root: its files are only fetched from the
+    // catalogue when the directory is first listed or looked into
+    private class DatasetDirectory extends MemoryDirectory {
+        private final String dataset;
+        private volatile boolean loaded = false;
+
+        private DatasetDirectory(String dataset) {
+            super(dataset);
+            this.dataset = dataset;
+        }
+
+        private void load() {
+            if (loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                // The table is built as catalogue rows arrive; files without
+                // a size are stat'ed in batches along the way
+                final FileTable t = new FileTable();
+                final int[] statFrom = new int[1];
+                boolean complete = catalogue.streamFiles(this.dataset, new Consumer<EgaArchiveFile>() {
+                    @Override
+                    public void accept(EgaArchiveFile f) {
+                        addFile(t, f);
+                        if (t.size() - statFrom[0] >= STAT_BATCH) {
+                            loadAttributes(t, statFrom[0], t.size());
+                            statFrom[0] = t.size();
+                        }
+                    }
+                });
+                if (!complete) {
+                    return; // Catalogue not available: try again on next access
+                }
+                loadAttributes(t, statFrom[0], t.size());
+                t.trim();
+                table = t;
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.FINE, "Dataset {0}: {1} files in {2} bytes",
+                        new Object[]{this.dataset, t.size(), t.getHeapBytes()});
+                loaded = true;
+            }
+        }
+
+        @Override
+        public void read(Pointer buf, FuseFillDir filler) {
+            load();
+            super.read(buf, filler);
+        }
+
+        // Bring a populated directory up to date with the catalogue: a new
+        // table is built next to the current one and swapped in, so lookups
+        // see either the old or the new list, and open files keep their row.
+        // Returns {added, removed, changed}, or null if the catalogue could
+        // not be read.
+        private int[] refresh() {
+            int[] delta = new int[3];
+            if (!loaded) {
+                return delta; // Nothing cached yet: read fresh on first use
+            }
+            final FileTable fresh = new FileTable();
+            boolean complete = catalogue.streamFiles(this.dataset, new Consumer<EgaArchiveFile>() {
+                @Override
+                public void accept(EgaArchiveFile f) {
+                    addFile(fresh, f);
+                }
+            });
+            if (!complete) {
+                return null;
+            }
+            final FileTable current = table;
+            for (int row = 0; row < fresh.size(); row++) {
+                int old = current.find(fresh.getName(row));
+                if (old < 0) {
+                    delta[0]++;
+                } else if (fresh.sameFile(row, current, old)) {
+                    if (fresh.getSize(row) < 0) { // Keep what an earlier stat found
+                        fresh.setAttributes(row, current.getSize(old), current.getModified(old));
+                    }
+                } else {
+                    dropCached(current.getPath(old));
+                    delta[2]++;
+                }
+            }
+            final int[] removed = new int[1];
+            current.forEachName(new ObjIntConsumer<String>() {
+                @Override
+                public void accept(String name, int row) {
+                    if (fresh.find(name) < 0) {
+                        dropCached(current.getPath(row));
+                        removed[0]++;
+                    }
+                }
+            });
+            delta[1] = removed[0];
+            loadAttributes(fresh, 0, fresh.size());
+            fresh.trim();
+            synchronized (this) {
+                table = fresh;
+            }
+            return delta;
+        }
+
+        // Dataset no longer accessible: forget cached data of all its files
+        private void dropAll() {
+            final FileTable current = table;
+            if (current == null) {
+                return;
+            }
+            current.forEachName(new ObjIntConsumer<String>() {
+                @Override
+                public void accept(String name, int row) {
+                    dropCached(current.getPath(row));
+                }
+            });
+        }
+    }
+
     //************************************************************************** MemoryFile
     // TODO: Read file, decrypt
     
     private class MemoryFile extends MemoryPath {
-        private File the_file;
-        private SeekableStream the_stream;
-        private String the_password;
-        private boolean in_encrypted;
-        private int bits;
-        
-        public MemoryFile(File f, String pw) {
-            super(f.getName());
-            this.the_file = f;
-            String name = f.getName();
-            this.in_encrypted = name.toLowerCase().endsWith(".cip");
-            this.the_password = pw;
-            this.the_stream = null;
-            this.bits = 128;
-        }
-        public MemoryFile(File f, String pw, int bits) {
-            super(f.getName());
-            this.the_file = f;
-            String name = f.getName();
-            this.in_encrypted = name.toLowerCase().endsWith(".cip");
-            this.the_password = pw;
-            this.the_stream = null;
-            this.bits = bits;
-        }
-        public MemoryFile(EgaArchiveFile f) {
-            super((new File(f.getFileArchivePath())).getName());
-            this.the_file = new File(f.getFileArchivePath());
-            this.in_encrypted = f.isEncrypted();
-            this.the_password = f.getFileKey();
-            this.the_stream = null;
-            this.bits = f.getFileAESKeyBits();
+        // A row of a file table: created on lookup, the node itself holds
+        // nothing but the row; attributes live in the table
+        private final FileTable table;
+        private final int row;
+        private String path = null; // Archive path, decoded on first use
+
+        private MemoryFile(String name, FileTable table, int row, MemoryDirectory parent) {
+            super(name, parent);
+            this.table = table;
+            this.row = row;
         }
 
         @Override
         protected void getattr(FileStat stat) {
             stat.st_mode.set(FileStat.S_IFREG | 0777);
-            long size = this.the_file.length();
-            if (this.in_encrypted)
-                size = size - 16;
-            stat.st_size.set(size);
+            stat.st_size.set(size());
+            long mtime = this.table.getModified(this.row);
+            stat.st_mtim.tv_sec.set(mtime / 1000);
+            stat.st_mtim.tv_nsec.set((mtime % 1000) * 1000000);
+            if (attributeTtl > 0 && this.table.sinceChecked(this.row) > attributeTtl)
+                revalidate();
+        }
+
+        private String path() {
+            if (this.path == null)
+                this.path = this.table.getPath(this.row);
+            return this.path;
         }
 
-        // Deal with encrypted as well as unencrypted files
-        public int open() {
+        // Plaintext size; only stats the archive file if it was not captured
+        private long size() {
+            long s = this.table.getSize(this.row);
+            if (s < 0) {
+                statFile(this.table, this.row);
+                s = this.table.getSize(this.row);
+            }
+            return s;
+        }
+
+        // Stat again in the background; getattr keeps serving the old values
+        private void revalidate() {
+            if (!this.table.startRevalidation(this.row))
+                return;
             try {
-                if (this.in_encrypted)
-                    this.the_stream = new SeekableCipherStream_256(new SeekableFileStream(this.the_file), this.the_password.toCharArray(), 65535, this.bits);
-                else
-                    this.the_stream = new SeekableFileStream(this.the_file);
-            } catch (FileNotFoundException ex) {
-                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+                statPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            statFile(table, row);
+                        } finally {
+                            table.endRevalidation(row);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                this.table.endRevalidation(this.row); // Shutting down
             }
+        }
 
-            return 0;
+        // Deal with encrypted as well as unencrypted files: every open gets
+        // its own stream (and decryption context), unless the file is small
+        // enough to be served from its materialised plaintext
+        public FileHandle open() throws IOException {
+            long size = size();
+            if (materialized != null && materialized.accepts(size)) {
+                MaterializedFiles.Entry entry = materialized.acquire(path(), size, new MaterializedFiles.Loader() {
+                    @Override
+                    public void load(ByteBuffer dst) throws IOException {
+                        SeekableStream in = openStream();
+                        try {
+                            readFully(in, 0, dst); // One pass: large files are decrypted in parallel
+                        } finally {
+                            in.close();
+                        }
+                    }
+                });
+                if (entry != null)
+                    return new FileHandle(this, entry);
+            }
+            return new FileHandle(this, openStream());
         }
 
-        private int read(Pointer buffer, long size, long offset) {
+        private SeekableStream openStream() throws IOException {
+            SeekableStream source = storage.forPath(path()).open(path());
+            if (diskCache != null && this.table.isEncrypted(this.row)) // Ciphertext only: never plaintext on disk
+                source = diskCache.wrap(path(), this.table.getModified(this.row), source);
+            if (this.table.isEncrypted(this.row))
+                return new SeekableCipherStream_256(source, this.table.getKey(this.row).toCharArray(), 65535, this.table.getBits(this.row));
+            else
+                return source;
+        }
+
+        private int read(FileHandle handle, Pointer buffer, long size, long offset) {
             // Get the size of the file
-            long fsize = this.the_file.length();
-            if (this.in_encrypted)
-                fsize = fsize - 16;
+            long fsize = size();
+            if (offset >= fsize)
+                return 0;
             int bytesToRead = (int) Math.min(fsize - offset, size);
-            // Prepare buffer to read from file
-            byte[] bytesRead = new byte[bytesToRead];
-            synchronized (this) {
-                try {
-                    this.the_stream.seek(offset);
-                    this.the_stream.read(bytesRead, 0, bytesToRead);
-                    buffer.put(0, bytesRead, 0, bytesToRead); // Set read data to return buffer
-                    this.the_stream.seek(0);
-                } catch (IOException ex) {
-                    Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+            // View on the native FUSE buffer: data is decrypted (or copied) straight into it
+            ByteBuffer dst = MemoryIO.getInstance().newDirectByteBuffer(buffer.address(), bytesToRead);
+            try {
+                if (handle.readAhead != null) { // schedule before serving, to overlap with this read
+                    long[] range = handle.readAhead.onRead(offset, bytesToRead);
+                    if (range != null && range[0] < fsize)
+                        schedulePrefetch(handle, range[0], Math.min(range[1], fsize), fsize);
+                }
+                if (handle.regionPrefetch) { // a jump may be the first chunk of a region query
+                    if (offset != handle.lastEnd)
+                        scheduleRegionPrefetch(handle, offset, bytesToRead, fsize);
+                    handle.lastEnd = offset + bytesToRead;
+                }
+                if (blockCache != null) {
+                    readCached(handle, dst, offset, fsize);
+                } else {
+                    synchronized (handle) { // Only concurrent reads on the same handle queue here
+                        readFully(handle.stream, offset, dst);
+                    }
                 }
+            } catch (IOException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+                return -ErrorCodes.EIO();
             }
             return bytesToRead;
         }
 
+        // Serve a read block by block from the shared cache; a missing block
+        // is decrypted in full once (concurrent misses on it wait for that)
+        // and then published for all readers
+        private void readCached(FileHandle handle, ByteBuffer dst, long offset, long fsize) throws IOException {
+            int blockSize = blockCache.getBlockSize();
+            String key = path();
+            IoTrace trace = IoTrace.current(); // Time not spent on a miss is copying
+            long start = System.nanoTime(), io = trace.getDisk() + trace.getDecrypt();
+            while (dst.hasRemaining()) {
+                long pos = offset + dst.position();
+                long block = pos / blockSize;
+                int inBlock = (int) (pos % blockSize);
+                if (blockCache.get(key, block, inBlock, dst) > 0)
+                    continue;
+
+                // Another reader is decrypting this block: wait, then look again
+                String load = key + '#' + block;
+                CountDownLatch done = new CountDownLatch(1);
+                CountDownLatch running = blockLoads.putIfAbsent(load, done);
+                if (running != null) {
+                    try {
+                        running.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting for block " + block);
+                    }
+                    continue;
+                }
+
+                long blockStart = block * blockSize;
+                int len = (int) Math.min(blockSize, fsize - blockStart);
+                ByteBuffer blockBuf = blockPool.acquire();
+                try {
+                    blockBuf.limit(len);
+                    synchronized (handle) {
+                        readFully(handle.stream, blockStart, blockBuf);
+                    }
+                    blockBuf.flip();
+                    blockCache.put(key, block, blockBuf);
+                    blockBuf.position(inBlock).limit(inBlock + Math.min(len - inBlock, dst.remaining()));
+                    dst.put(blockBuf);
+                } finally {
+                    blockPool.release(blockBuf);
+                    blockLoads.remove(load);
+                    done.countDown();
+                }
+            }
+            IoTrace.copy(System.nanoTime() - start - (trace.getDisk() + trace.getDecrypt() - io));
+        }
+
+        private void schedulePrefetch(final FileHandle handle, final long from, final long to, final long fsize) {
+            try {
+                prefetchPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        prefetch(handle, from, to, fsize);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                // Shutting down
+            }
+        }
+
+        // Runs on the prefetch pool: decrypt the blocks of [from, to) that are
+        // not cached yet, with a second stream of the handle. Consecutive
+        // missing blocks are decrypted as one batch (in parallel, if it is
+        // large enough) and then split into the cache.
+        private void prefetch(FileHandle handle, long from, long to, long fsize) {
+            synchronized (handle.prefetchLock) {
+                handle.prefetchStream = fill(handle, handle.prefetchStream, from, to, fsize);
+            }
+        }
+
+        // Decrypt the missing blocks of [from, to) into the cache, reading
+        // with [stream] (opened here if null); returns the stream
+        private SeekableStream fill(FileHandle handle, SeekableStream stream, long from, long to, long fsize) {
+            int blockSize = blockCache.getBlockSize();
+            String key = path();
+            ByteBuffer batch = null;
+            try {
+                long block = from / blockSize;
+                while (block * blockSize < to) {
+                    if (handle.closed)
+                        break;
+                    if (blockCache.contains(key, block)) {
+                        block++;
+                        continue;
+                    }
+                    if (stream == null)
+                        stream = openStream();
+                    if (batch == null)
+                        batch = batchPool.acquire();
+
+                    // Run of missing blocks, up to the batch size
+                    int maxBlocks = Math.max(1, batch.capacity() / blockSize);
+                    long first = block;
+                    while (block - first < maxBlocks && block * blockSize < to && block * blockSize < fsize
+                            && (block == first || !blockCache.contains(key, block)))
+                        block++;
+                    long runStart = first * blockSize;
+                    int runLength = (int) Math.min((block - first) * blockSize, fsize - runStart);
+
+                    batch.clear().limit(runLength);
+                    readFully(stream, runStart, batch);
+                    for (long b = first; b < block; b++) {
+                        int at = (int) ((b - first) * blockSize);
+                        batch.limit(Math.min(at + blockSize, runLength)).position(at);
+                        blockCache.put(key, b, batch);
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.WARNING, "Prefetch failed: " + StorageBackends.redact(key), ex);
+            } finally {
+                batchPool.release(batch);
+            }
+            return stream;
+        }
+
+        // The index maps the chunk at [offset] to the rest of its region:
+        // every range is decrypted by its own task (and stream), in parallel
+        private void scheduleRegionPrefetch(final FileHandle handle, long offset, int length, final long fsize) {
+            RegionIndex index = handle.regionIndex;
+            if (index == null) {
+                index = regionIndexes.get(path()); // Loaded after this open
+                if (index == null)
+                    return;
+                handle.regionIndex = index;
+            }
+            long[] ranges = index.prefetchRanges(offset, length, fsize, regionPrefetchMax);
+            if (ranges == null)
+                return;
+            try {
+                for (int i=0; i<ranges.length; i+=2) {
+                    final long from = ranges[i], to = ranges[i+1];
+                    prefetchPool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            SeekableStream stream = fill(handle, null, from, to, fsize);
+                            try {
+                                if (stream != null)
+                                    stream.close();
+                            } catch (IOException ex) {
+                                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.WARNING, null, ex);
+                            }
+                        }
+                    });
+                    regionPrefetchBytes.addAndGet(to - from);
+                }
+                regionPrefetches.incrementAndGet();
+            } catch (RejectedExecutionException ex) {
+                // Shutting down
+            }
+        }
+
         /*
         private synchronized void truncate(long size) {
             if (size < contents.capacity()) {
@@ -227,6 +590,109 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
         */
     }
 
+    // ************************************************************************* FileHandle
+
+    // State of one open(): stored in the handle table, referenced by fi.fh
+    private class FileHandle {
+        private final MemoryFile file;
+        private final SeekableStream stream;
+        private final byte[] contents; // Virtual or materialised file: fixed at open (stream is null)
+        private final MaterializedFiles.Entry materializedEntry;
+
+        // Readahead (null: disabled); prefetching uses its own stream
+        private final ReadAhead readAhead;
+        private final Object prefetchLock = new Object();
+        private SeekableStream prefetchStream = null;
+        private volatile boolean closed = false;
+
+        // Region prefetch (BAM/CRAM with an index): index, once loaded, and
+        // the end of the last read, to tell jumps from sequential reads
+        private final boolean regionPrefetch;
+        private volatile RegionIndex regionIndex = null;
+        private volatile long lastEnd = -1;
+
+        private FileHandle(MemoryFile file, SeekableStream stream) {
+            this.file = file;
+            this.stream = stream;
+            this.contents = null;
+            this.materializedEntry = null;
+            this.readAhead = (blockCache != null && readAheadMax > 0)?new ReadAhead(readAheadMin, readAheadMax):null;
+            this.regionPrefetch = (blockCache != null && regionPrefetchMax > 0 && alignmentExtension(file.path()) != null);
+        }
+
+        private FileHandle(byte[] contents) {
+            this.file = null;
+            this.stream = null;
+            this.contents = contents;
+            this.materializedEntry = null;
+            this.readAhead = null;
+            this.regionPrefetch = false;
+        }
+
+        private FileHandle(MemoryFile file, MaterializedFiles.Entry entry) {
+            this.file = file;
+            this.stream = null;
+            this.contents = entry.getData();
+            this.materializedEntry = entry;
+            this.readAhead = null;
+            this.regionPrefetch = false;
+        }
+
+        private void close() {
+            this.closed = true; // stops a running prefetch after its current block
+            if (this.materializedEntry != null)
+                materialized.release(this.materializedEntry);
+            if (this.stream == null)
+                return;
+            try {
+                this.stream.close();
+                synchronized (this.prefetchLock) {
+                    if (this.prefetchStream != null)
+                        this.prefetchStream.close();
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            if (this.readAhead != null && this.readAhead.getReads() > 0)
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.FINE, "Readahead " + StorageBackends.redact(this.file.path()) +
+                        ": window=" + this.readAhead.getWindow() + " hit rate=" + this.readAhead.getHitRate());
+        }
+    }
+
+    // ************************************************************************* StatsFile
+
+    // Read-only text file with the current metrics; only in the path index,
+    // so it is not listed. Every getattr renders a new report; open serves
+    // the one its lookup just reported the size of.
+    private class StatsFile extends MemoryPath {
+        private volatile byte[] report = null;
+        private volatile long rendered = 0;
+
+        private StatsFile(String name) {
+            super(name, null);
+        }
+
+        @Override
+        protected void getattr(FileStat stat) {
+            byte[] r = render();
+            stat.st_mode.set(FileStat.S_IFREG | 0444);
+            stat.st_size.set(r.length);
+            stat.st_mtim.tv_sec.set(this.rendered / 1000);
+        }
+
+        private byte[] render() {
+            byte[] r = stats.getReport().getBytes(StandardCharsets.US_ASCII);
+            this.rendered = System.currentTimeMillis();
+            this.report = r;
+            return r;
+        }
+
+        private byte[] contents() {
+            byte[] r = this.report;
+            return (r != null && System.currentTimeMillis() - this.rendered < 1000)?r:render();
+        }
+    }
+
     // ************************************************************************* MemoryPath
     
     private abstract class MemoryPath {
@@ -249,14 +715,13 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
             }
         }
 
-        protected MemoryPath find(String path) {
-            while (path.startsWith("/")) {
-                path = path.substring(1);
+        // Absolute path of this node, as FUSE passes it in
+        protected String fullPath() {
+            if (parent == null) {
+                return "/";
             }
-            if (path.equals(name) || path.isEmpty()) {
-                return this;
-            }
-            return null;
+            String parentPath = parent.fullPath();
+            return parentPath.equals("/")?"/" + name:parentPath + "/" + name;
         }
 
         protected abstract void getattr(FileStat stat);
@@ -275,29 +740,330 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
     // Main Program
     
     private final String mount_path;
-    private final EgaArchiveFile[] files;
+    private final MountOptions mountOptions;
+    private final CachePolicy cachePolicy; // keep_cache / direct_io per open
+    private final ArchiveCatalogue catalogue; // null: flat file list only
+    private final String dataset; // Only dataset shown; null or '*': all
+
+    // Periodic catalogue refresh (null: off), and what the last one did
+    private final ScheduledExecutorService refresher;
+    private final long refreshInterval; // seconds
+    private final AtomicLong refreshCount = new AtomicLong(0);
+    private final AtomicLong refreshFailures = new AtomicLong(0);
+    private volatile long lastRefreshMillis = 0;
+    private volatile int[] lastRefreshDelta = new int[3]; // added, removed, changed
+    private final DecryptedBlockCache blockCache; // null: caching disabled
+    private final DirectBufferPool blockPool; // Staging buffers for blocks decrypted on a cache miss
+    private final ConcurrentHashMap<String, CountDownLatch> blockLoads = new ConcurrentHashMap<>(); // Misses being decrypted, by path#block
+    private final DirectBufferPool batchPool; // Staging buffers for prefetch batches
+
+    // Ciphertext source of each archive file: local file or HTTP, with an
+    // optional cache of its chunks on a local disk
+    private final StorageBackends storage;
+    private final CiphertextDiskCache diskCache;
+
+    // Sequential readahead into the block cache: window bounds, worker pool
+    private final long readAheadMin, readAheadMax;
+    private final ExecutorService prefetchPool;
+
+    // Small files held in full while open (null: disabled)
+    private final MaterializedFiles materialized;
+
+    // Region prefetch: parsed indexes by archive path of the BAM/CRAM file
+    // (RegionIndex.NONE: it has none), in LRU order
+    private final long regionPrefetchMax; // Bytes per region query; 0: disabled
+    private final long regionIndexMax;    // Largest index file loaded
+    private final Map<String, RegionIndex> regionIndexes;
+    private final Set<String> regionIndexLoads = ConcurrentHashMap.newKeySet();
+    private final AtomicLong regionPrefetches = new AtomicLong(0);
+    private final AtomicLong regionPrefetchBytes = new AtomicLong(0);
+
+    // File attributes: revalidation interval (ns; 0: never), stat workers
+    private static final int STAT_BATCH = 1024;
+    private final long attributeTtl;
+    private final ExecutorService statPool;
+
+    // Operation metrics; optional JMX beans and virtual stats file (null: none)
+    private final FuseStats stats = new FuseStats(this);
+    private final boolean statsJmx;
+    private final String statsPath;
+    private final SlowRequestLog slowLog;
+
+    // Open files, by handle number (fi.fh)
+    private final ConcurrentHashMap<Long, FileHandle> handles = new ConcurrentHashMap<>();
+    private final AtomicLong nextHandle = new AtomicLong(1);
     
     public void run() {
         try {
-            String[] args = new String[]{"-o", "allow_other"}; // Allow non-root access
-            this.mount(Paths.get(this.mount_path), true, true, args);
+            if (this.refresher != null) {
+                Runnable task = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            refresh();
+                        } catch (RuntimeException ex) { // Keep the schedule alive
+                            refreshFailures.incrementAndGet();
+                            Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                };
+                if (this.catalogue.isStale()) // Started from an old copy: revalidate right away
+                    this.refresher.execute(task);
+                if (this.refreshInterval > 0)
+                    this.refresher.scheduleWithFixedDelay(task, this.refreshInterval, this.refreshInterval, TimeUnit.SECONDS);
+            }
+            if (this.statsJmx)
+                this.stats.register();
+            Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.INFO, "Mounting " + this.mount_path + " (" +
+                    (this.mountOptions.isMultithreaded()?"multi":"single") + "-threaded): " + this.mountOptions);
+            this.mount(Paths.get(this.mount_path), true, this.mountOptions.isDebug(), this.mountOptions.toArgs());
         } finally {
             this.umount();
+            if (this.statsJmx)
+                this.stats.unregister();
+            if (this.refresher != null)
+                this.refresher.shutdownNow();
+            this.prefetchPool.shutdownNow();
+            this.statPool.shutdownNow();
+            if (this.diskCache != null)
+                this.diskCache.flush();
         }
     }
 
+    // Every node by absolute path: resolving a FUSE path is one hash lookup
+    private final ConcurrentHashMap<String, MemoryPath> pathIndex = new ConcurrentHashMap<>();
+
     private MemoryDirectory rootDirectory = new MemoryDirectory("");
 
     // Instantiate a filesystem: files anf paths are provided in a list
     // File list can be obtained from a directory or a database
     public EgaMemoryCIPFuse(EgaArchiveFile[] files, String mount_path) {
-        this.files = files;
+        this(files, mount_path, new FuseConfig(null));
+    }
+    public EgaMemoryCIPFuse(EgaArchiveFile[] files, String mount_path, FuseConfig config) {
+        this(files, null, null, mount_path, config);
+    }
+
+    // Instantiate a filesystem with one directory per dataset of the catalogue
+    // (or only [dataset], if not null or '*'); files are listed on first use
+    public EgaMemoryCIPFuse(ArchiveCatalogue catalogue, String dataset, String mount_path, FuseConfig config) {
+        this(new EgaArchiveFile[0], catalogue, dataset, mount_path, config);
+    }
+
+    private EgaMemoryCIPFuse(EgaArchiveFile[] files, ArchiveCatalogue catalogue, String dataset, String mount_path, FuseConfig config) {
+        this.catalogue = catalogue;
+        this.dataset = dataset;
         this.mount_path = mount_path;
+        this.mountOptions = new MountOptions(config);
+        this.cachePolicy = new CachePolicy(config);
+
+        // Decrypted block cache, shared by all files: [cache] size_mb=0 disables it
+        long cacheBytes = config.getLong("cache", "size_mb", 512) * 1024L * 1024L;
+        int blockSize = config.getInt("cache", "block_size", DecryptedBlockCache.DEFAULT_BLOCK_SIZE);
+        if (blockSize != DecryptedBlockCache.usableBlockSize(blockSize)) {
+            Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.WARNING, "[cache] block_size = " + blockSize +
+                    ": must be a multiple of 16 from 4096 to 64 MB; using " + DecryptedBlockCache.usableBlockSize(blockSize));
+            blockSize = DecryptedBlockCache.usableBlockSize(blockSize);
+        }
+        this.blockCache = (cacheBytes > 0)?new DecryptedBlockCache(cacheBytes, blockSize):null;
+        this.blockPool = new DirectBufferPool(blockSize, 64);
+
+        this.storage = new StorageBackends(config);
+        // [disk_cache] dir = (empty: no disk cache)
+        String diskCacheDir = config.get("disk_cache", "dir", "");
+        this.diskCache = (diskCacheDir.length() > 0)?new CiphertextDiskCache(new File(diskCacheDir),
+                config.getLong("disk_cache", "size_mb", 102400) * 1024L * 1024L,
+                config.getInt("disk_cache", "chunk_kb", 1024) * 1024):null;
+
+        // Parallel decryption of large ranges (prefetch batches)
+        int threshold = config.getInt("decrypt", "parallel_threshold_kb", ParallelCtrDecryptor.DEFAULT_THRESHOLD / 1024) * 1024;
+        ParallelCtrDecryptor.configure(config.getInt("decrypt", "threads", Runtime.getRuntime().availableProcessors()),
+                threshold, config.getInt("decrypt", "chunk_kb", ParallelCtrDecryptor.DEFAULT_CHUNK / 1024) * 1024);
+        int batchSize = Math.max(blockSize, config.getInt("readahead", "batch_kb", 4096) * 1024);
+        this.batchPool = new DirectBufferPool((batchSize / blockSize) * blockSize, 16);
+
+        // Readahead needs the block cache: [readahead] max_kb=0 disables it
+        this.readAheadMin = config.getLong("readahead", "min_kb", 256) * 1024L;
+        this.readAheadMax = config.getLong("readahead", "max_kb", 65536) * 1024L;
+        this.prefetchPool = Executors.newFixedThreadPool(config.getInt("readahead", "threads", 4), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ega-prefetch");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // [materialize] budget_mb = 0 disables it
+        long materializeBudget = config.getLong("materialize", "budget_mb", 256) * 1024L * 1024L;
+        this.materialized = (materializeBudget > 0)?new MaterializedFiles(config.getLong("materialize", "max_kb", 4096) * 1024L, materializeBudget):null;
+
+        // [region_prefetch] max_mb = 0 disables it (as does a disabled block cache)
+        this.regionPrefetchMax = config.getBoolean("region_prefetch", "enabled", true)?
+                config.getLong("region_prefetch", "max_mb", 32) * 1024L * 1024L:0;
+        this.regionIndexMax = config.getLong("region_prefetch", "max_index_mb", 64) * 1024L * 1024L;
+        final int indexes = config.getInt("region_prefetch", "indexes", 64);
+        this.regionIndexes = Collections.synchronizedMap(new LinkedHashMap<String, RegionIndex>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, RegionIndex> eldest) {
+                return size() > indexes;
+            }
+        });
+
+        // [attributes] ttl_s = 0: sizes and times are never revalidated
+        this.attributeTtl = config.getLong("attributes", "ttl_s", 0) * 1000000000L;
+        this.statPool = Executors.newFixedThreadPool(config.getInt("attributes", "stat_threads", 16), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ega-stat");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     
-        // Build File System by parsing specified origin                        TODO: Handle Subdirectories
+        // [stats] file = .ega-stats (empty: no stats file), jmx = true
+        String statsFile = config.get("stats", "file", ".ega-stats");
+        this.statsPath = (statsFile.length() > 0)?"/" + statsFile:null;
+        this.statsJmx = config.getBoolean("stats", "jmx", true);
+
+        // [slowlog] threshold_ms = 0 disables it
+        this.slowLog = new SlowRequestLog(config.getLong("slowlog", "threshold_ms", 1000),
+                config.getInt("slowlog", "max_per_minute", 60));
+
+        this.pathIndex.put("/", this.rootDirectory);
+        if (this.statsPath != null)
+            this.pathIndex.put(this.statsPath, new StatsFile(statsFile));
+
+        // Build File System by parsing specified origin
+        FileTable flat = new FileTable(files.length);
         for(EgaArchiveFile f : files){            
-            rootDirectory.add(new MemoryFile(f));
+            addFile(flat, f);
+        }
+        loadAttributes(flat, 0, flat.size());
+        flat.trim();
+        rootDirectory.table = flat;
+        if (catalogue != null) {
+            Set<String> datasets = listDatasets();
+            for (String d : (datasets==null)?Collections.<String>emptySet():datasets) {
+                rootDirectory.add(new DatasetDirectory(d));
+            }
+        }
+
+        // [catalogue] refresh_s = 0: the tree is only built once (or, when
+        // built from a stale catalogue, revalidated once)
+        this.refreshInterval = config.getLong("catalogue", "refresh_s", 600);
+        this.refresher = (catalogue != null && (this.refreshInterval > 0 || catalogue.isStale()))?Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ega-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        }):null;
+    }
+
+    // Datasets of the catalogue shown in this mount; null if not available
+    private Set<String> listDatasets() {
+        String[] datasets = this.catalogue.listDatasets();
+        if (datasets == null) {
+            return null;
+        }
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String d : datasets) {
+            if (this.dataset == null || this.dataset.equals("*") || this.dataset.equals(d)) {
+                result.add(d);
+            }
+        }
+        return result;
+    }
+
+    // Re-query the catalogue and apply the difference to the live tree:
+    // datasets that appeared or disappeared, and the file lists of datasets
+    // that have been populated already. Each change is applied atomically
+    // per path; reads of open files are never held up.
+    private void refresh() {
+        long start = System.nanoTime();
+        Set<String> datasets = listDatasets();
+        if (datasets == null) {
+            this.refreshFailures.incrementAndGet();
+            return; // Catalogue not available: keep serving the current tree
+        }
+        int[] delta = new int[3];
+        boolean failed = false;
+        for (MemoryPath p : this.rootDirectory.contents.values()) {
+            if (p instanceof DatasetDirectory && !datasets.contains(((DatasetDirectory) p).dataset)) {
+                p.delete(); // Permission revoked
+                ((DatasetDirectory) p).dropAll();
+                delta[1]++;
+            }
         }
+        for (String d : datasets) {
+            MemoryPath p = this.rootDirectory.contents.get(d);
+            if (p == null) {
+                this.rootDirectory.add(new DatasetDirectory(d)); // Newly approved
+                delta[0]++;
+            } else if (p instanceof DatasetDirectory) {
+                int[] files = ((DatasetDirectory) p).refresh();
+                if (files == null) {
+                    failed = true;
+                    continue;
+                }
+                for (int i=0; i<delta.length; i++) {
+                    delta[i] += files[i];
+                }
+            }
+        }
+
+        this.lastRefreshMillis = (System.nanoTime() - start) / 1000000L;
+        this.lastRefreshDelta = delta;
+        this.refreshCount.incrementAndGet();
+        if (failed)
+            this.refreshFailures.incrementAndGet();
+        Level level = (delta[0] + delta[1] + delta[2] > 0)?Level.INFO:Level.FINE;
+        Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(level, "Catalogue refresh: {0} added, {1} removed, {2} changed in {3} ms",
+                new Object[]{delta[0], delta[1], delta[2], this.lastRefreshMillis});
+    }
+
+    // Catalogue refresh statistics
+    public long getRefreshCount() {
+        return this.refreshCount.get();
+    }
+
+    public long getRefreshFailures() {
+        return this.refreshFailures.get();
+    }
+
+    public long getLastRefreshMillis() {
+        return this.lastRefreshMillis;
+    }
+
+    public int getLastRefreshAdded() {
+        return this.lastRefreshDelta[0];
+    }
+
+    public int getLastRefreshRemoved() {
+        return this.lastRefreshDelta[1];
+    }
+
+    // Applied by run(); may be changed until then (e.g. from the command line)
+    public MountOptions getMountOptions() {
+        return this.mountOptions;
+    }
+
+    public FuseStats getStats() {
+        return this.stats;
+    }
+
+    public int getOpenHandles() {
+        return this.handles.size();
+    }
+
+    DecryptedBlockCache getBlockCache() {
+        return this.blockCache;
+    }
+
+    public int getLastRefreshChanged() {
+        return this.lastRefreshDelta[2];
     }
 
     /*
@@ -317,12 +1083,145 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
 
     @Override
     public int getattr(String path, FileStat stat) {
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin();
         MemoryPath p = getPath(path);
+        long lookup = System.nanoTime();
+        int rc = -ErrorCodes.ENOENT();
         if (p != null) {
             p.getattr(stat);
-            return 0;
+            rc = 0;
         }
-        return -ErrorCodes.ENOENT();
+        return done(FuseStats.Operation.GETATTR, start, lookup, trace, path, 0, 0, 0, rc);
+    }
+
+    // End of a request: record it, and log it if it was slow; returns rc.
+    // [lookup] is the time path resolution was done at ([start]: none).
+    private int done(FuseStats.Operation op, long start, long lookup, IoTrace trace,
+            String path, long fh, long offset, long size, int rc) {
+        long elapsed = System.nanoTime() - start;
+        this.stats.record(op, elapsed, rc);
+        if (this.slowLog.isSlow(elapsed))
+            this.slowLog.log(op, path, fh, offset, size, rc, elapsed, lookup - start, trace);
+        return rc;
+    }
+
+    // Fill dst from [position]; all streams opened here are positional
+    private static void readFully(SeekableStream in, long position, ByteBuffer dst) throws IOException {
+        PositionalReadable source = (PositionalReadable) in;
+        while (dst.hasRemaining()) {
+            int count = source.read(position, dst);
+            if (count < 0)
+                throw new IOException("Unexpected end of file in " + in.getSource());
+            position += count;
+        }
+    }
+
+    // ".bam" or ".cram", if [name] is an alignment file region prefetch applies to
+    private static String alignmentExtension(String name) {
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".cip"))
+            lower = lower.substring(0, lower.length()-4);
+        return lower.endsWith(".bam")?".bam":lower.endsWith(".cram")?".cram":null;
+    }
+
+    // Load the index of a BAM/CRAM file in the background, unless it is
+    // cached: its open does not wait, and reads make use of it once it is there
+    private void loadRegionIndex(final MemoryPath p, final MemoryFile file) {
+        final String key = file.path();
+        final MemoryDirectory dir = p.parent;
+        if (dir == null || this.regionIndexes.containsKey(key) || !this.regionIndexLoads.add(key))
+            return;
+        try {
+            this.prefetchPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        regionIndexes.put(key, readRegionIndex(dir, p.name));
+                    } finally {
+                        regionIndexLoads.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.regionIndexLoads.remove(key); // Shutting down
+        }
+    }
+
+    // The index next to [name], as samtools/htslib look for it
+    private RegionIndex readRegionIndex(MemoryDirectory dir, String name) {
+        String ext = alignmentExtension(name);
+        String base = name.substring(0, name.length() - ext.length());
+        String[] candidates = ext.equals(".bam")?new String[]{name + ".bai", base + ".bai", name + ".csi", base + ".csi"}:
+                new String[]{name + ".crai", base + ".crai"};
+        for (String candidate : candidates) {
+            MemoryPath p = dir.lookup(candidate);
+            if (!(p instanceof MemoryFile))
+                continue;
+            MemoryFile index = (MemoryFile) p;
+            long size = index.size();
+            if (size <= 0 || size > this.regionIndexMax)
+                continue;
+            try {
+                byte[] data = new byte[(int) size];
+                SeekableStream in = index.openStream();
+                try {
+                    readFully(in, 0, ByteBuffer.wrap(data));
+                } finally {
+                    in.close();
+                }
+                RegionIndex result = RegionIndex.parse(candidate, data);
+                if (result != null) {
+                    Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.FINE, "Region index " + candidate + " loaded");
+                    return result;
+                }
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.WARNING, "Region index " + candidate + " not usable", ex);
+            }
+        }
+        return RegionIndex.NONE;
+    }
+
+    // Ciphertext cache on local disk (all 0 if there is none)
+    public long getDiskCacheHits() {
+        return (this.diskCache == null)?0:this.diskCache.getHits();
+    }
+
+    public long getDiskCacheMisses() {
+        return (this.diskCache == null)?0:this.diskCache.getMisses();
+    }
+
+    public long getDiskCacheEvictions() {
+        return (this.diskCache == null)?0:this.diskCache.getEvictions();
+    }
+
+    public long getDiskCacheUsedBytes() {
+        return (this.diskCache == null)?0:this.diskCache.getUsed();
+    }
+
+    public long getDiskCacheCapacityBytes() {
+        return (this.diskCache == null)?0:this.diskCache.getCapacity();
+    }
+
+    // Plaintext of small files held for open handles
+    public long getMaterializedBytes() {
+        return (this.materialized == null)?0:this.materialized.getUsed();
+    }
+
+    public int getMaterializedFiles() {
+        return (this.materialized == null)?0:this.materialized.getFiles();
+    }
+
+    public long getMaterializedRejected() {
+        return (this.materialized == null)?0:this.materialized.getRejected();
+    }
+
+    public long getRegionPrefetches() {
+        return this.regionPrefetches.get();
+    }
+
+    public long getRegionPrefetchBytes() {
+        return this.regionPrefetchBytes.get();
     }
 
     private String getLastComponent(String path) {
@@ -336,11 +1235,162 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
     }
 
     private MemoryPath getParentPath(String path) {
-        return rootDirectory.find(path.substring(0, path.lastIndexOf("/")));
+        int slash = path.lastIndexOf("/");
+        return getPath(slash <= 0?"/":path.substring(0, slash));
     }
 
+    // FUSE hands in normalised absolute paths, which are looked up as they
+    // are; anything else (trailing or double slashes) is normalised first
     private MemoryPath getPath(String path) {
-        return rootDirectory.find(path);
+        MemoryPath p = this.pathIndex.get(path);
+        if (p == null && (path.endsWith("/") || path.contains("//") || !path.startsWith("/"))) {
+            path = normalise(path);
+            p = this.pathIndex.get(path);
+        }
+        if (p == null) {
+            p = getTablePath(path);
+        }
+        return p;
+    }
+
+    // Not indexed: catalogue files are looked up in the table of their
+    // directory (a dataset directory is populated first, if needed)
+    private MemoryPath getTablePath(String path) {
+        int slash = path.lastIndexOf('/');
+        if (slash < 0 || slash == path.length() - 1) {
+            return null;
+        }
+        MemoryPath parent = (slash == 0)?this.rootDirectory:getPath(path.substring(0, slash));
+        if (parent instanceof DatasetDirectory) {
+            ((DatasetDirectory) parent).load();
+        }
+        if (parent instanceof MemoryDirectory) {
+            return ((MemoryDirectory) parent).lookup(path.substring(slash + 1));
+        }
+        return null;
+    }
+
+    private static String normalise(String path) {
+        StringBuilder sb = new StringBuilder(path.length() + 1);
+        for (String component : path.split("/")) {
+            if (!component.isEmpty()) {
+                sb.append('/').append(component);
+            }
+        }
+        return (sb.length() == 0)?"/":sb.toString();
+    }
+
+    // Catalogue entry to table row, named after the archive file (without
+    // '.cip'); the size in the table is that of the plaintext
+    private static int addFile(FileTable t, EgaArchiveFile f) {
+        String name = StorageBackends.getName(f.getFileArchivePath());
+        if (name.toLowerCase().endsWith(".cip"))
+            name = name.substring(0, name.length()-4);
+        long size = f.getFileSize();
+        if (size >= 0 && f.isEncrypted())
+            size = Math.max(0, size - 16);
+        return t.add(name, f.getFileArchivePath(), f.getFileKey(), f.getFileAESKeyBits(), size, f.getFileModified());
+    }
+
+    // One metadata call to archive storage; cached blocks of a file that
+    // changed in the meantime are dropped
+    private void statFile(FileTable t, int row) {
+        String path = t.getPath(row);
+        long[] attributes;
+        try {
+            attributes = this.storage.forPath(path).stat(path);
+        } catch (IOException ex) {
+            Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.WARNING, "Stat failed: " + StorageBackends.redact(path), ex);
+            if (t.getSize(row) < 0)
+                t.setAttributes(row, 0, 0); // As for a missing file
+            return;
+        }
+        long size = attributes[0];
+        if (t.isEncrypted(row))
+            size = Math.max(0, size - 16);
+        long modified = attributes[1];
+        if (t.getSize(row) >= 0 && (size != t.getSize(row) || modified != t.getModified(row)))
+            dropCached(path);
+        t.setAttributes(row, size, modified);
+    }
+
+    private void dropCached(String path) {
+        if (this.blockCache != null)
+            this.blockCache.invalidate(path);
+        this.regionIndexes.remove(path);
+        if (this.materialized != null)
+            this.materialized.invalidate(path);
+    }
+
+    // Stat all files in rows [from, to) the catalogue gave no size for, in
+    // parallel: listing a large directory does not wait for one storage
+    // round trip after another
+    private void loadAttributes(final FileTable t, int from, int to) {
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        for (int row = from; row < to; row++) {
+            if (t.getSize(row) < 0) {
+                final int r = row;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        statFile(t, r);
+                        return null;
+                    }
+                });
+            }
+        }
+        if (tasks.isEmpty())
+            return;
+        try {
+            this.statPool.invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt(); // Remaining files are stat'ed on first use
+        }
+    }
+
+    // Catalogue held in memory: files, and bytes used by their tables
+    public long getCatalogueFiles() {
+        long n = 0;
+        for (FileTable t : tables())
+            n += t.size();
+        return n;
+    }
+
+    public long getCatalogueBytes() {
+        long n = 0;
+        for (FileTable t : tables())
+            n += t.getHeapBytes();
+        return n;
+    }
+
+    private ArrayList<FileTable> tables() {
+        ArrayList<FileTable> result = new ArrayList<>();
+        if (this.rootDirectory.table != null)
+            result.add(this.rootDirectory.table);
+        for (MemoryPath p : this.rootDirectory.contents.values()) {
+            if (p instanceof MemoryDirectory && ((MemoryDirectory) p).table != null)
+                result.add(((MemoryDirectory) p).table);
+        }
+        return result;
+    }
+
+    // Path index maintenance: a node is (un)registered with its whole subtree
+    private void index(MemoryPath p) {
+        this.pathIndex.put(p.fullPath(), p);
+        if (p instanceof MemoryDirectory) {
+            for (MemoryPath child : ((MemoryDirectory) p).contents.values()) {
+                index(child);
+            }
+        }
+    }
+
+    private void unindex(MemoryPath p) {
+        this.pathIndex.remove(p.fullPath(), p);
+        if (p instanceof MemoryDirectory) {
+            for (MemoryPath child : ((MemoryDirectory) p).contents.values()) {
+                unindex(child);
+            }
+        }
     }
 
 
@@ -360,29 +1410,46 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
 
     @Override
     public int read(String path, Pointer buf, @size_t long size, @off_t long offset, FuseFileInfo fi) {
-        MemoryPath p = getPath(path);
-        if (p == null) {
-            return -ErrorCodes.ENOENT();
-        }
-        if (!(p instanceof MemoryFile)) {
-            return -ErrorCodes.EISDIR();
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin();
+        long fh = fi.fh.get();
+        FileHandle handle = this.handles.get(fh);
+        int rc;
+        if (handle == null) {
+            rc = -ErrorCodes.EBADF();
+        } else if (handle.contents != null) {
+            rc = readContents(handle.contents, buf, size, offset);
+        } else {
+            rc = handle.file.read(handle, buf, size, offset);
         }
-        return ((MemoryFile) p).read(buf, size, offset);
+        return done(FuseStats.Operation.READ, start, start, trace, path, fh, offset, size, rc);
+    }
+
+    private static int readContents(byte[] contents, Pointer buf, long size, long offset) {
+        if (offset >= contents.length)
+            return 0;
+        int n = (int) Math.min(size, contents.length - offset);
+        buf.put(0, contents, (int) offset, n);
+        return n;
     }
 
     @Override
     public int readdir(String path, Pointer buf, FuseFillDir filter, @off_t long offset, FuseFileInfo fi) {
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin();
         MemoryPath p = getPath(path);
+        long lookup = System.nanoTime();
+        int rc = 0;
         if (p == null) {
-            return -ErrorCodes.ENOENT();
-        }
-        if (!(p instanceof MemoryDirectory)) {
-            return -ErrorCodes.ENOTDIR();
+            rc = -ErrorCodes.ENOENT();
+        } else if (!(p instanceof MemoryDirectory)) {
+            rc = -ErrorCodes.ENOTDIR();
+        } else {
+            filter.apply(buf, ".", null, 0);
+            filter.apply(buf, "..", null, 0);
+            ((MemoryDirectory) p).read(buf, filter);
         }
-        filter.apply(buf, ".", null, 0);
-        filter.apply(buf, "..", null, 0);
-        ((MemoryDirectory) p).read(buf, filter);
-        return 0;
+        return done(FuseStats.Operation.READDIR, start, lookup, trace, path, 0, offset, 0, rc);
     }
 
     @Override
@@ -391,6 +1458,9 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
         if (p == null) {
             return -ErrorCodes.ENOENT();
         }
+        if (p instanceof StatsFile) {
+            return -ErrorCodes.EACCES();
+        }
         MemoryPath newParent = getParentPath(newName);
         if (newParent == null) {
             return -ErrorCodes.ENOENT();
@@ -438,6 +1508,9 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
         if (p == null) {
             return -ErrorCodes.ENOENT();
         }
+        if (p instanceof StatsFile) {
+            return -ErrorCodes.EACCES();
+        }
         p.delete();
         return 0;
     }
@@ -459,17 +1532,59 @@ public class EgaMemoryCIPFuse extends FuseStubFS {
     // Instantiate Cipher, etc.
     @Override
     public int open(String path, FuseFileInfo fi) {
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin();
         MemoryPath p = getPath(path);
-        
+        long lookup = System.nanoTime();
+        int rc = openHandle(p, fi);
+        return done(FuseStats.Operation.OPEN, start, lookup, trace, path, (rc == 0)?fi.fh.get():0, 0, 0, rc);
+    }
+
+    private int openHandle(MemoryPath p, FuseFileInfo fi) {
         if (p == null) {
             return -ErrorCodes.ENOENT();
         }
-        if (!(p instanceof MemoryFile)) {
+
+        FileHandle handle;
+        int caching;
+        if (p instanceof StatsFile) {
+            handle = new FileHandle(((StatsFile) p).contents());
+            caching = CachePolicy.DIRECT_IO; // Size changes with every report: never cache
+        } else if (!(p instanceof MemoryFile)) {
             return -ErrorCodes.EISDIR();
         } else {
-            int open = ( (MemoryFile)p ).open();
+            MemoryFile file = (MemoryFile) p;
+            try {
+                handle = file.open();
+            } catch (FileNotFoundException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+                return -ErrorCodes.ENOENT();
+            } catch (IOException ex) {
+                Logger.getLogger(EgaMemoryCIPFuse.class.getName()).log(Level.SEVERE, null, ex);
+                return -ErrorCodes.EIO();
+            }
+            if (handle.regionPrefetch)
+                loadRegionIndex(p, file);
+            caching = this.cachePolicy.choose(p.name, file.size(), fi.flags.get());
         }
+        long fh = this.nextHandle.getAndIncrement();
+        this.handles.put(fh, handle);
+        fi.fh.set(fh);
+        CachePolicy.apply(fi, caching);
     
         return 0;
     }
+
+    // Close the stream of this open()
+    @Override
+    public int release(String path, FuseFileInfo fi) {
+        long start = System.nanoTime();
+        IoTrace trace = IoTrace.begin();
+        long fh = fi.fh.get();
+        FileHandle handle = this.handles.remove(fh);
+        if (handle != null) {
+            handle.close();
+        }
+        return done(FuseStats.Operation.RELEASE, start, start, trace, path, fh, 0, 0, 0);
+    }
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Operation metrics of a mount: a latency histogram and an error count per
+ * FUSE operation, bytes served, and the state of the block cache, handle
+ * table and catalogue. Exposed as JMX MBeans and rendered as text for the
+ * virtual stats file in the mount.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import uk.ac.embl.ebi.ega.utils.DecryptedBlockCache;
+import uk.ac.embl.ebi.ega.utils.IoTrace;
+import uk.ac.embl.ebi.ega.utils.LatencyHistogram;
+
+/**
+ *
+ * @author asenf
+ */
+public class FuseStats implements FuseStatsMBean {
+    private static final String DOMAIN = "uk.ac.embl.ebi.ega";
+
+    public enum Operation {
+        GETATTR, OPEN, READ, READDIR, RELEASE;
+
+        private final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private final EgaMemoryCIPFuse fs;
+    private final long started = System.currentTimeMillis();
+    private final OperationStats[] operations = new OperationStats[Operation.values().length];
+    private final LongAdder bytesServed = new LongAdder();
+
+    public FuseStats(EgaMemoryCIPFuse fs) {
+        this.fs = fs;
+        for (Operation op : Operation.values())
+            this.operations[op.ordinal()] = new OperationStats();
+    }
+
+    // One finished request that took [nanos]; [rc] is the FUSE result
+    // (negative: error; for reads, the number of bytes)
+    public void record(Operation op, long nanos, int rc) {
+        OperationStats s = this.operations[op.ordinal()];
+        s.latency.record(nanos);
+        if (rc < 0)
+            s.errors.increment();
+        else if (op == Operation.READ)
+            this.bytesServed.add(rc);
+    }
+
+    public OperationStats get(Operation op) {
+        return this.operations[op.ordinal()];
+    }
+
+    // ************************************************************************* JMX
+
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new StandardMBean(this, FuseStatsMBean.class), new ObjectName(DOMAIN + ":type=Fuse"));
+            for (Operation op : Operation.values())
+                server.registerMBean(new StandardMBean(get(op), OperationStatsMBean.class), operationName(op));
+        } catch (JMException ex) { // e.g. a second mount in this JVM
+            Logger.getLogger(FuseStats.class.getName()).log(Level.WARNING, "JMX registration failed", ex);
+        }
+    }
+
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(new ObjectName(DOMAIN + ":type=Fuse"));
+            for (Operation op : Operation.values())
+                server.unregisterMBean(operationName(op));
+        } catch (JMException ex) {
+            Logger.getLogger(FuseStats.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    private static ObjectName operationName(Operation op) throws JMException {
+        return new ObjectName(DOMAIN + ":type=FuseOperation,name=" + op.label);
+    }
+
+    // ************************************************************************* Report
+
+    // One "name value" pair per line, for cat, grep and awk
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder(2048);
+        line(sb, "uptime_s", getUptimeSeconds());
+        for (Operation op : Operation.values()) {
+            OperationStats s = get(op);
+            line(sb, op.label + ".count", s.getCount());
+            line(sb, op.label + ".errors", s.getErrors());
+            line(sb, op.label + ".mean_us", s.getMeanMicros());
+            line(sb, op.label + ".p50_us", s.getP50Micros());
+            line(sb, op.label + ".p99_us", s.getP99Micros());
+            line(sb, op.label + ".p999_us", s.getP999Micros());
+            line(sb, op.label + ".max_us", s.getMaxMicros());
+        }
+        line(sb, "bytes_served", getBytesServed());
+        line(sb, "disk_ms", getDiskMillis());
+        line(sb, "disk_bytes", getDiskBytes());
+        line(sb, "decrypt_ms", getDecryptMillis());
+        line(sb, "cache.hits", getCacheHits());
+        line(sb, "cache.misses", getCacheMisses());
+        line(sb, "cache.hit_ratio", getCacheHitRatio());
+        line(sb, "cache.evictions", getCacheEvictions());
+        line(sb, "cache.used_bytes", getCacheUsedBytes());
+        line(sb, "cache.capacity_bytes", getCacheCapacityBytes());
+        line(sb, "disk_cache.hits", getDiskCacheHits());
+        line(sb, "disk_cache.misses", getDiskCacheMisses());
+        line(sb, "disk_cache.evictions", getDiskCacheEvictions());
+        line(sb, "disk_cache.used_bytes", getDiskCacheUsedBytes());
+        line(sb, "disk_cache.capacity_bytes", getDiskCacheCapacityBytes());
+        line(sb, "materialized.bytes", getMaterializedBytes());
+        line(sb, "materialized.files", getMaterializedFiles());
+        line(sb, "materialized.rejected", getMaterializedRejected());
+        line(sb, "region_prefetch.count", getRegionPrefetches());
+        line(sb, "region_prefetch.bytes", getRegionPrefetchBytes());
+        line(sb, "open_handles", getOpenHandles());
+        line(sb, "catalogue.files", getCatalogueFiles());
+        line(sb, "catalogue.bytes", getCatalogueBytes());
+        line(sb, "refresh.count", getRefreshCount());
+        line(sb, "refresh.failures", getRefreshFailures());
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%.3f", value)).append('\n');
+    }
+
+    // ************************************************************************* FuseStatsMBean
+
+    @Override
+    public long getUptimeSeconds() {
+        return (System.currentTimeMillis() - this.started) / 1000;
+    }
+
+    @Override
+    public long getBytesServed() {
+        return this.bytesServed.sum();
+    }
+
+    @Override
+    public long getDiskMillis() {
+        return IoTrace.getTotalDisk() / 1000000;
+    }
+
+    @Override
+    public long getDiskBytes() {
+        return IoTrace.getTotalDiskBytes();
+    }
+
+    @Override
+    public long getDecryptMillis() {
+        return IoTrace.getTotalDecrypt() / 1000000;
+    }
+
+    @Override
+    public long getCacheHits() {
+        DecryptedBlockCache cache = this.fs.getBlockCache();
+        return (cache == null)?0:cache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        DecryptedBlockCache cache = this.fs.getBlockCache();
+        return (cache == null)?0:cache.getMisses();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = getCacheHits(), total = hits + getCacheMisses();
+        return (total == 0)?0:(double) hits / total;
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        DecryptedBlockCache cache = this.fs.getBlockCache();
+        return (cache == null)?0:cache.getEvictions();
+    }
+
+    @Override
+    public long getCacheUsedBytes() {
+        DecryptedBlockCache cache = this.fs.getBlockCache();
+        return (cache == null)?0:cache.getUsed();
+    }
+
+    @Override
+    public long getCacheCapacityBytes() {
+        DecryptedBlockCache cache = this.fs.getBlockCache();
+        return (cache == null)?0:cache.getCapacity();
+    }
+
+    @Override
+    public long getDiskCacheHits() {
+        return this.fs.getDiskCacheHits();
+    }
+
+    @Override
+    public long getDiskCacheMisses() {
+        return this.fs.getDiskCacheMisses();
+    }
+
+    @Override
+    public long getDiskCacheEvictions() {
+        return this.fs.getDiskCacheEvictions();
+    }
+
+    @Override
+    public long getDiskCacheUsedBytes() {
+        return this.fs.getDiskCacheUsedBytes();
+    }
+
+    @Override
+    public long getDiskCacheCapacityBytes() {
+        return this.fs.getDiskCacheCapacityBytes();
+    }
+
+    @Override
+    public long getMaterializedBytes() {
+        return this.fs.getMaterializedBytes();
+    }
+
+    @Override
+    public int getMaterializedFiles() {
+        return this.fs.getMaterializedFiles();
+    }
+
+    @Override
+    public long getMaterializedRejected() {
+        return this.fs.getMaterializedRejected();
+    }
+
+    @Override
+    public long getRegionPrefetches() {
+        return this.fs.getRegionPrefetches();
+    }
+
+    @Override
+    public long getRegionPrefetchBytes() {
+        return this.fs.getRegionPrefetchBytes();
+    }
+
+    @Override
+    public int getOpenHandles() {
+        return this.fs.getOpenHandles();
+    }
+
+    @Override
+    public long getCatalogueFiles() {
+        return this.fs.getCatalogueFiles();
+    }
+
+    @Override
+    public long getCatalogueBytes() {
+        return this.fs.getCatalogueBytes();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return this.fs.getRefreshCount();
+    }
+
+    @Override
+    public long getRefreshFailures() {
+        return this.fs.getRefreshFailures();
+    }
+
+    // ************************************************************************* OperationStats
+
+    public static class OperationStats implements OperationStatsMBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        @Override
+        public long getCount() {
+            return this.latency.getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return this.errors.sum();
+        }
+
+        @Override
+        public double getMeanMicros() {
+            return this.latency.getMean() / 1e3;
+        }
+
+        @Override
+        public double getP50Micros() {
+            return this.latency.getPercentile(0.5) / 1e3;
+        }
+
+        @Override
+        public double getP99Micros() {
+            return this.latency.getPercentile(0.99) / 1e3;
+        }
+
+        @Override
+        public double getP999Micros() {
+            return this.latency.getPercentile(0.999) / 1e3;
+        }
+
+        @Override
+        public double getMaxMicros() {
+            return this.latency.getMax() / 1e3;
+        }
+    }
+}
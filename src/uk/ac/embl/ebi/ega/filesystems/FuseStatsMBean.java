@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+/**
+ *
+ * @author asenf
+ *
+ * JMX view of the file system as a whole (uk.ac.embl.ebi.ega:type=Fuse).
+ * Times are in milliseconds, sizes in bytes.
+ */
+public interface FuseStatsMBean {
+    public long getUptimeSeconds();
+    public long getBytesServed();
+    public long getDiskMillis();
+    public long getDiskBytes();
+    public long getDecryptMillis();
+    public long getCacheHits();
+    public long getCacheMisses();
+    public double getCacheHitRatio();
+    public long getCacheEvictions();
+    public long getCacheUsedBytes();
+    public long getCacheCapacityBytes();
+    public long getDiskCacheHits();
+    public long getDiskCacheMisses();
+    public long getDiskCacheEvictions();
+    public long getDiskCacheUsedBytes();
+    public long getDiskCacheCapacityBytes();
+    public long getMaterializedBytes();
+    public int getMaterializedFiles();
+    public long getMaterializedRejected();
+    public long getRegionPrefetches();
+    public long getRegionPrefetchBytes();
+    public int getOpenHandles();
+    public long getCatalogueFiles();
+    public long getCatalogueBytes();
+    public long getRefreshCount();
+    public long getRefreshFailures();
+    public String getReport();
+}
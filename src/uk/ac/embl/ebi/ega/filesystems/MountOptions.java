@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Arguments for the libfuse mount, from the [mount] section of the ini file
+ * and the command line: debug output, single or multi-threaded dispatch, and
+ * the -o options (kernel caching, request sizes, attribute timeouts, ...).
+ * Later settings win; the command line is applied after the ini file.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import uk.ac.embl.ebi.ega.utils.FuseConfig;
+
+/**
+ *
+ * @author asenf
+ */
+public class MountOptions {
+    private boolean debug;
+    private boolean multithreaded;
+    private final LinkedHashMap<String, String> options = new LinkedHashMap<>(); // value null: flag
+
+    public MountOptions(FuseConfig config) {
+        this.debug = config.getBoolean("mount", "debug", false);
+        this.multithreaded = config.getBoolean("mount", "multithreaded", true);
+        flag("allow_other", config.getBoolean("mount", "allow_other", true)); // Allow non-root access
+        flag("ro", config.getBoolean("mount", "read_only", false));
+        flag("kernel_cache", config.getBoolean("mount", "kernel_cache", false));
+        flag("big_writes", config.getBoolean("mount", "big_writes", false));
+        value("max_read", config.get("mount", "max_read", ""));
+        value("max_readahead", config.get("mount", "max_readahead", ""));
+        value("attr_timeout", config.get("mount", "attr_timeout", ""));
+        value("entry_timeout", config.get("mount", "entry_timeout", ""));
+        value("negative_timeout", config.get("mount", "negative_timeout", ""));
+        add(config.get("mount", "options", ""));
+    }
+
+    // Comma separated -o list, e.g. "max_read=131072,kernel_cache"
+    public final void add(String list) {
+        if (list == null)
+            return;
+        for (String option : list.split(",")) {
+            option = option.trim();
+            if (option.length() == 0)
+                continue;
+            int eq = option.indexOf('=');
+            if (eq < 0)
+                this.options.put(option, null);
+            else
+                this.options.put(option.substring(0, eq).trim(), option.substring(eq + 1).trim());
+        }
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+
+    public boolean isDebug() {
+        return this.debug;
+    }
+
+    public void setMultithreaded(boolean multithreaded) {
+        this.multithreaded = multithreaded;
+    }
+
+    public boolean isMultithreaded() {
+        return this.multithreaded;
+    }
+
+    // libfuse arguments after the mount point (debug is a separate parameter of mount())
+    public String[] toArgs() {
+        ArrayList<String> args = new ArrayList<>();
+        if (!this.multithreaded)
+            args.add("-s");
+        if (!this.options.isEmpty()) {
+            args.add("-o");
+            args.add(toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : this.options.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(e.getKey());
+            if (e.getValue() != null)
+                sb.append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    private void flag(String name, boolean set) {
+        if (set)
+            this.options.put(name, null);
+    }
+
+    private void value(String name, String value) {
+        if (value.length() > 0)
+            this.options.put(name, value);
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+/**
+ *
+ * @author asenf
+ *
+ * JMX view of one FUSE operation (uk.ac.embl.ebi.ega:type=FuseOperation,name=read
+ * etc.). Latencies are in microseconds.
+ */
+public interface OperationStatsMBean {
+    public long getCount();
+    public long getErrors();
+    public double getMeanMicros();
+    public double getP50Micros();
+    public double getP99Micros();
+    public double getP999Micros();
+    public double getMaxMicros();
+}
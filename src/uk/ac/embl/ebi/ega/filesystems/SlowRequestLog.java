@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Log of FUSE requests that took longer than a threshold, one line each with
+ * the request (operation, path, handle, offset, size, result) and where its
+ * time went: path lookup, key derivation, storage reads, decryption, copying
+ * from the block cache, and the rest. Lines go to the logger
+ * "uk.ac.embl.ebi.ega.slowlog" at WARNING; at most [maxPerMinute] are written
+ * per minute, the number dropped in between is added to the next line.
+ */
+package uk.ac.embl.ebi.ega.filesystems;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import uk.ac.embl.ebi.ega.utils.IoTrace;
+
+/**
+ *
+ * @author asenf
+ */
+public class SlowRequestLog {
+    private static final Logger LOG = Logger.getLogger("uk.ac.embl.ebi.ega.slowlog");
+
+    private final long threshold; // ns; Long.MAX_VALUE: off
+    private final int maxPerMinute;
+
+    // Rate limit: lines written in the current minute, and dropped since the last line
+    private long windowStart = 0;
+    private int written = 0;
+    private long suppressed = 0;
+
+    public SlowRequestLog(long thresholdMillis, int maxPerMinute) {
+        this.threshold = (thresholdMillis > 0)?thresholdMillis * 1000000L:Long.MAX_VALUE;
+        this.maxPerMinute = maxPerMinute;
+    }
+
+    public boolean isSlow(long nanos) {
+        return nanos >= this.threshold;
+    }
+
+    // A slow request: [total] and [lookup] in ns, the other stages from the
+    // thread's trace since the request began
+    public void log(FuseStats.Operation op, String path, long fh, long offset, long size, int rc,
+            long total, long lookup, IoTrace trace) {
+        long suppressedBefore;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - this.windowStart >= 60000) {
+                this.windowStart = now;
+                this.written = 0;
+            }
+            if (this.written >= this.maxPerMinute) {
+                this.suppressed++;
+                return;
+            }
+            this.written++;
+            suppressedBefore = this.suppressed;
+            this.suppressed = 0;
+        }
+
+        long key = trace.sinceKey(), disk = trace.sinceDisk(), decrypt = trace.sinceDecrypt(), copy = trace.sinceCopy();
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("slow op=").append(op.name().toLowerCase())
+          .append(" path=").append(path)
+          .append(" fh=").append(fh)
+          .append(" offset=").append(offset)
+          .append(" size=").append(size)
+          .append(" rc=").append(rc)
+          .append(" total_us=").append(total / 1000)
+          .append(" lookup_us=").append(lookup / 1000)
+          .append(" key_us=").append(key / 1000)
+          .append(" disk_us=").append(disk / 1000)
+          .append(" decrypt_us=").append(decrypt / 1000)
+          .append(" copy_us=").append(copy / 1000)
+          .append(" other_us=").append(Math.max(0, total - lookup - key - disk - decrypt - copy) / 1000);
+        if (suppressedBefore > 0)
+            sb.append(" suppressed=").append(suppressedBefore);
+        LOG.log(Level.WARNING, sb.toString());
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author asenf
+ *
+ * Source of the datasets and files presented by the file system. Files of a
+ * dataset are only asked for when its directory is first used.
+ */
+public interface ArchiveCatalogue {
+
+    // IDs of all datasets visible in the mount
+    public String[] listDatasets();
+
+    // Files of one dataset, handed to the consumer one at a time as they are
+    // read; false if they could not (all) be retrieved
+    public boolean streamFiles(String dataset, Consumer<EgaArchiveFile> consumer);
+
+    // True while the catalogue serves a copy that may be out of date (e.g. a
+    // snapshot from an earlier run); it should be refreshed soon
+    public default boolean isStale() {
+        return false;
+    }
+
+    // Files of one dataset; null if they could not be retrieved
+    public default EgaArchiveFile[] listFiles(String dataset) {
+        ArrayList<EgaArchiveFile> files = new ArrayList<>();
+        if (!streamFiles(dataset, files::add))
+            return null;
+        return files.toArray(new EgaArchiveFile[files.size()]);
+    }
+}
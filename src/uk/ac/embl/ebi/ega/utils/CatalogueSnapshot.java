@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Catalogue that keeps a copy of everything read from another catalogue (the
+ * database) in a snapshot file, and starts from that copy. The file is
+ * memory-mapped, so a restart can mount at once without a database query;
+ * the first dataset list and each dataset's first file list are served from
+ * the snapshot, everything after that - the background refresh - from the
+ * database again. When the database returns something different, a new
+ * snapshot is written and atomically swapped in.
+ *
+ * Layout: magic, version, owner, creation time, dataset count, then per
+ * dataset its ID, whether its file list is known, and the encoded file
+ * records; a CRC32 of all preceding bytes closes the file. Keys are never
+ * stored, only whether a file is encrypted.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ *
+ * @author asenf
+ */
+public class CatalogueSnapshot implements ArchiveCatalogue {
+
+    private static final int MAGIC = 0x45474143; // "EGAC"
+    private static final int VERSION = 1;
+    private static final long WRITE_DELAY = 5; // s: changes are written in batches
+
+    private final ArchiveCatalogue source;
+    private final File file;
+    private final String owner; // Snapshot of another user's catalogue is ignored
+    private final String password;
+
+    // Current contents: dataset IDs, encoded file records per dataset (views
+    // of the mapped snapshot, or arrays of what the source returned since)
+    private volatile String[] datasets = null;
+    private final ConcurrentHashMap<String, ByteBuffer> records = new ConcurrentHashMap<>();
+
+    // Served from the snapshot so far; stale until the source answered once
+    private volatile boolean stale = false;
+    private final AtomicBoolean datasetsServed = new AtomicBoolean(true);
+    private final Set<String> filesServed = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService writer;
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+
+    public CatalogueSnapshot(ArchiveCatalogue source, File file, String owner, String password) {
+        this.source = source;
+        this.file = file;
+        this.owner = (owner==null)?"":owner;
+        this.password = password;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ega-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        if (this.file.exists()) {
+            long t = System.currentTimeMillis();
+            if (load()) {
+                this.stale = true;
+                this.datasetsServed.set(false);
+                Logger.getLogger(CatalogueSnapshot.class.getName()).log(Level.INFO, "Catalogue snapshot {0}: {1} datasets, loaded in {2} ms",
+                        new Object[]{this.file, this.datasets.length, System.currentTimeMillis() - t});
+            }
+        }
+    }
+
+    // True while serving snapshot contents the source has not confirmed yet
+    @Override
+    public boolean isStale() {
+        return this.stale;
+    }
+
+    @Override
+    public String[] listDatasets() {
+        if (this.datasetsServed.compareAndSet(false, true))
+            return this.datasets.clone();
+
+        String[] result = this.source.listDatasets();
+        if (result != null) {
+            if (this.datasets == null || !Arrays.equals(this.datasets, result)) {
+                this.datasets = result.clone();
+                scheduleWrite();
+            }
+            this.stale = false;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean streamFiles(String dataset, Consumer<EgaArchiveFile> consumer) {
+        ByteBuffer known = this.records.get(dataset);
+        if (this.stale && known != null && this.filesServed.add(dataset)) {
+            decode(known.duplicate(), consumer);
+            return true;
+        }
+
+        // From the source, recording what is passed through
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(encoded);
+        final Consumer<EgaArchiveFile> target = consumer;
+        boolean complete = this.source.streamFiles(dataset, new Consumer<EgaArchiveFile>() {
+            @Override
+            public void accept(EgaArchiveFile f) {
+                try {
+                    encode(f, out);
+                } catch (IOException ex) { // Not for an in-memory stream
+                    throw new IllegalStateException(ex);
+                }
+                target.accept(f);
+            }
+        });
+        if (complete) {
+            ByteBuffer fresh = ByteBuffer.wrap(encoded.toByteArray());
+            if (known == null || !known.equals(fresh)) {
+                this.records.put(dataset, fresh);
+                scheduleWrite();
+            }
+        }
+        return complete;
+    }
+
+    // *************************************************************************
+    // Snapshot file
+
+    private boolean load() {
+        try (RandomAccessFile raf = new RandomAccessFile(this.file, "r")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size < 32 || size > Integer.MAX_VALUE)
+                throw new IOException("Unusable snapshot size: " + size);
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after close
+
+            ByteBuffer body = map.duplicate();
+            body.limit((int) size - 8);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != map.getLong((int) size - 8))
+                throw new IOException("Checksum mismatch");
+
+            if (body.getInt() != MAGIC || body.getInt() != VERSION)
+                throw new IOException("Not a catalogue snapshot of version " + VERSION);
+            if (!getString(body).equals(this.owner))
+                throw new IOException("Snapshot of another user");
+            body.getLong(); // Created
+            String[] ids = new String[body.getInt()];
+            for (int i=0; i<ids.length; i++) {
+                ids[i] = getString(body);
+                boolean filesKnown = body.get() != 0;
+                int length = body.getInt();
+                ByteBuffer recs = body.slice();
+                recs.limit(length);
+                body.position(body.position() + length);
+                if (filesKnown)
+                    this.records.put(ids[i], recs);
+            }
+            this.datasets = ids;
+            return true;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+            Logger.getLogger(CatalogueSnapshot.class.getName()).log(Level.WARNING, "Ignoring catalogue snapshot " + this.file + ": " + ex.getMessage());
+            this.records.clear();
+            return false;
+        }
+    }
+
+    private void scheduleWrite() {
+        if (this.writePending.compareAndSet(false, true)) {
+            this.writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    writePending.set(false);
+                    write();
+                }
+            }, WRITE_DELAY, TimeUnit.SECONDS);
+        }
+    }
+
+    // Write to a temporary file next to the snapshot, then move it in place
+    private synchronized void write() {
+        String[] ids = this.datasets;
+        if (ids == null)
+            return;
+        File tmp = new File(this.file.getPath() + ".tmp");
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                putString(out, this.owner);
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(ids.length);
+                byte[] chunk = new byte[1 << 16];
+                for (String id : ids) {
+                    putString(out, id);
+                    ByteBuffer recs = this.records.get(id);
+                    out.writeByte((recs==null)?0:1);
+                    if (recs == null) {
+                        out.writeInt(0);
+                        continue;
+                    }
+                    recs = recs.duplicate();
+                    out.writeInt(recs.remaining());
+                    while (recs.hasRemaining()) {
+                        int n = Math.min(chunk.length, recs.remaining());
+                        recs.get(chunk, 0, n);
+                        out.write(chunk, 0, n);
+                    }
+                }
+                out.writeLong(checked.getChecksum().getValue());
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Logger.getLogger(CatalogueSnapshot.class.getName()).log(Level.WARNING, "Catalogue snapshot not written: " + this.file, ex);
+            tmp.delete();
+        }
+    }
+
+    // File record: name, archive path, size, last modified, key bits, encrypted
+    private static void encode(EgaArchiveFile f, DataOutputStream out) throws IOException {
+        putString(out, (f.getFileName()==null)?"":f.getFileName());
+        putString(out, f.getFileArchivePath());
+        out.writeLong(f.getFileSize());
+        out.writeLong(f.getFileModified());
+        out.writeInt(f.getFileAESKeyBits());
+        out.writeByte(f.isEncrypted()?1:0);
+    }
+
+    private void decode(ByteBuffer recs, Consumer<EgaArchiveFile> consumer) {
+        while (recs.hasRemaining()) {
+            String fileName = getString(recs);
+            String fileArchivePath = getString(recs);
+            long size = recs.getLong();
+            long modified = recs.getLong();
+            int bits = recs.getInt();
+            boolean encrypted = recs.get() != 0;
+            EgaArchiveFile f = new EgaArchiveFile(fileName, fileArchivePath, encrypted?this.password:null, bits);
+            f.setFileSize(size);
+            f.setFileModified(modified);
+            consumer.accept(f);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] b = new byte[in.getInt()];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
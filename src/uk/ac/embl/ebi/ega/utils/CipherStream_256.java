@@ -164,12 +164,16 @@ public class CipherStream_256 extends Thread {
     
     // Get a cipher object, based on provided initialization objects - iv returned through parameters
     public static Cipher getCipher(char[] password, boolean mod, int pw_strength, byte[] iv) {        
+        // Key Generation
+        SecretKey secret = Glue.getInstance().getKey(password, pw_strength);
+
+        return getCipher(secret, mod, iv);
+    }
+    // Same, for callers that already hold the derived key
+    public static Cipher getCipher(SecretKey secret, boolean mod, byte[] iv) {
         Cipher cipher = null;
         
         try {
-            // Key Generation
-            SecretKey secret = Glue.getInstance().getKey(password, pw_strength);
-
             // Initialization Vector
             byte[] random_iv = new byte[16];
             if (mod) { // encrypt -- randomly generate
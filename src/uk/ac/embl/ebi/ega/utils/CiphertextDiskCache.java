@@ -0,0 +1,574 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Second-level cache of archive file contents on a local disk, underneath the
+ * decryption: only ciphertext is ever written. Each archive file gets a
+ * sparse cache file, filled in chunks of [chunkSize] as they are read, and a
+ * small map file with its identity (length, last modified) and, per chunk, a
+ * presence bit and a CRC32. Both are named after a digest of the archive path
+ * without credentials; the path itself is never written to disk.
+ *
+ * The cache is bounded by a byte budget over all files; when a new chunk does
+ * not fit, whole files are evicted, least recently opened first. Map files
+ * are written when a stream is closed and on flush(), and read back on
+ * start, so the cache survives restarts. Chunks that come from an earlier
+ * run are checked against their CRC when first read (a crash may have lost
+ * data written after the map); a chunk that does not match is fetched again.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ */
+public class CiphertextDiskCache {
+    private static final int MAGIC = 0x45474143; // "EGAC"
+    private static final int VERSION = 2; // 1: map files held the archive path
+
+    private final File dir;
+    private final int chunkSize;
+    private final long budget;
+    private final DirectBufferPool chunkPool;
+
+    // Cached files by file name, least recently opened first; guards used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long used = 0;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public CiphertextDiskCache(File dir, long budget, int chunkSize) {
+        this.dir = dir;
+        this.budget = budget;
+        this.chunkSize = chunkSize;
+        this.chunkPool = new DirectBufferPool(chunkSize, 16);
+        dir.mkdirs();
+        load();
+    }
+
+    // Read [source] (contents of archive file [path], last modified
+    // [modified]) through the cache; cached chunks of an older version of
+    // the file are dropped
+    public SeekableStream wrap(String path, long modified, SeekableStream source) {
+        long length = source.length();
+        String name = fileName(path);
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(name);
+            if (entry != null && (entry.length != length || entry.modified != modified)) {
+                remove(entry);
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(this.dir, name, length, modified, chunks(length));
+                this.entries.put(name, entry);
+            }
+        }
+        return new Stream(entry, source);
+    }
+
+    // Write the maps of all files with new chunks
+    public void flush() {
+        ArrayList<Entry> all;
+        synchronized (this.entries) {
+            all = new ArrayList<>(this.entries.values());
+        }
+        for (Entry e : all)
+            e.save();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public long getUsed() {
+        synchronized (this.entries) {
+            return this.used;
+        }
+    }
+
+    public long getCapacity() {
+        return this.budget;
+    }
+
+    private int chunks(long length) {
+        return (int) ((length + this.chunkSize - 1) / this.chunkSize);
+    }
+
+    private int chunkLength(Entry entry, int chunk) {
+        return (int) Math.min(this.chunkSize, entry.length - (long) chunk * this.chunkSize);
+    }
+
+    // Room for a chunk of [entry]: evicts other files, least recently opened
+    // first; false if the budget cannot take it
+    private boolean reserve(Entry entry, int bytes) {
+        synchronized (this.entries) {
+            if (entry.removed)
+                return false;
+            Iterator<Entry> lru = this.entries.values().iterator();
+            while (this.used + bytes > this.budget && lru.hasNext()) {
+                Entry victim = lru.next();
+                if (victim == entry)
+                    continue;
+                lru.remove();
+                victim.delete();
+                this.used -= victim.bytes;
+                this.evictions.incrementAndGet();
+            }
+            if (this.used + bytes > this.budget)
+                return false;
+            this.used += bytes;
+            entry.bytes += bytes;
+            return true;
+        }
+    }
+
+    // Give back the room of a chunk that was not stored after all
+    private void unreserve(Entry entry, int bytes) {
+        synchronized (this.entries) {
+            if (entry.removed)
+                return; // Its bytes were given back as a whole
+            this.used -= bytes;
+            entry.bytes -= bytes;
+        }
+    }
+
+    // Drop a file (guarded by entries)
+    private void remove(Entry entry) {
+        this.entries.remove(entry.name);
+        entry.delete();
+        this.used -= entry.bytes;
+    }
+
+    // Cache files are named after a digest of the archive path, without the
+    // user info of a URL (credentials change, the file does not)
+    private static String fileName(String path) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-1").digest(StorageBackends.redact(path).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : d)
+                sb.append(String.format("%02x", b & 0xFF));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // Maps of an earlier run, oldest first; data files without a map, or maps
+    // that cannot be read, are deleted
+    private void load() {
+        File[] maps = this.dir.listFiles();
+        if (maps == null)
+            return;
+        Arrays.sort(maps, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File f : maps) {
+            String name = f.getName();
+            if (name.endsWith(".tmp")) { // Map being written when the process ended
+                f.delete();
+                continue;
+            }
+            if (name.endsWith(".data") && !new File(this.dir, name.substring(0, name.length() - 5) + ".map").exists()) {
+                f.delete();
+                continue;
+            }
+            if (!name.endsWith(".map"))
+                continue;
+            Entry entry = Entry.read(this, f);
+            if (entry == null) {
+                f.delete();
+                new File(this.dir, name.substring(0, name.length() - 4) + ".data").delete();
+                continue;
+            }
+            this.entries.put(entry.name, entry);
+            this.used += entry.bytes;
+        }
+        // Over a (possibly smaller) budget: drop the oldest
+        Iterator<Entry> lru = this.entries.values().iterator();
+        while (this.used > this.budget && lru.hasNext()) {
+            Entry victim = lru.next();
+            lru.remove();
+            victim.delete();
+            this.used -= victim.bytes;
+        }
+        Logger.getLogger(CiphertextDiskCache.class.getName()).log(Level.INFO, "Disk cache " + this.dir + ": " +
+                this.entries.size() + " files, " + this.used + " bytes");
+    }
+
+    // ************************************************************************* Entry
+
+    // One archive file: presence and CRC32 per chunk, data in a sparse file
+    private static class Entry {
+        private final String name;
+        private final long length;
+        private final long modified;
+        private final BitSet present;
+        private final BitSet verified; // Present chunks known to be intact (written or checked in this run)
+        private final int[] crc;
+        private long bytes = 0;        // Guarded by entries
+        private boolean removed = false;
+        private boolean dirty = false;
+        private FileChannel channel = null;
+        private final File dataFile, mapFile;
+
+        private Entry(File dir, String name, long length, long modified, int chunks) {
+            this.name = name;
+            this.length = length;
+            this.modified = modified;
+            this.present = new BitSet(chunks);
+            this.verified = new BitSet(chunks);
+            this.crc = new int[chunks];
+            this.dataFile = new File(dir, name + ".data");
+            this.mapFile = new File(dir, name + ".map");
+        }
+
+        // Reopened if an interrupted reader closed it
+        private synchronized FileChannel channel() throws IOException {
+            if (this.removed)
+                return null;
+            if (this.channel == null || !this.channel.isOpen())
+                this.channel = FileChannel.open(this.dataFile.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return this.channel;
+        }
+
+        private synchronized boolean isPresent(int chunk) {
+            return !this.removed && this.present.get(chunk);
+        }
+
+        private synchronized boolean isVerified(int chunk) {
+            return this.verified.get(chunk);
+        }
+
+        // False if another reader stored it first, or the file was dropped
+        private synchronized boolean setPresent(int chunk, int crc) {
+            if (this.removed || this.present.get(chunk))
+                return false;
+            this.present.set(chunk);
+            this.verified.set(chunk);
+            this.crc[chunk] = crc;
+            this.dirty = true;
+            return true;
+        }
+
+        private synchronized void setVerified(int chunk) {
+            this.verified.set(chunk);
+        }
+
+        // Chunk failed its check: forget it; false if that happened already
+        private synchronized boolean setMissing(int chunk) {
+            if (!this.present.get(chunk))
+                return false;
+            this.present.clear(chunk);
+            this.dirty = true;
+            return true;
+        }
+
+        private synchronized int getCrc(int chunk) {
+            return this.crc[chunk];
+        }
+
+        // Write the map: to a temporary file, then renamed over the old one
+        private synchronized void save() {
+            if (!this.dirty || this.removed)
+                return;
+            File tmp = new File(this.mapFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(this.length);
+                out.writeLong(this.modified);
+                out.writeInt(this.crc.length);
+                long[] bits = this.present.toLongArray();
+                out.writeInt(bits.length);
+                for (long b : bits)
+                    out.writeLong(b);
+                for (int c : this.crc)
+                    out.writeInt(c);
+            } catch (IOException ex) {
+                Logger.getLogger(CiphertextDiskCache.class.getName()).log(Level.WARNING, "Disk cache map " + this.mapFile, ex);
+                tmp.delete();
+                return;
+            }
+            try {
+                Files.move(tmp.toPath(), this.mapFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                this.dirty = false;
+            } catch (IOException ex) {
+                Logger.getLogger(CiphertextDiskCache.class.getName()).log(Level.WARNING, "Disk cache map " + this.mapFile, ex);
+            }
+        }
+
+        private synchronized void delete() {
+            this.removed = true;
+            try {
+                if (this.channel != null)
+                    this.channel.close();
+            } catch (IOException ex) {
+                // Deleted anyway
+            }
+            this.channel = null;
+            this.dataFile.delete();
+            this.mapFile.delete();
+        }
+
+        // Entry of a map file written by save(); null if it is not usable
+        private static Entry read(CiphertextDiskCache cache, File map) {
+            String name = map.getName().substring(0, map.getName().length() - 4);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(map)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                    return null;
+                long length = in.readLong();
+                long modified = in.readLong();
+                int chunks = in.readInt();
+                if (chunks != cache.chunks(length))
+                    return null; // Other chunk size
+                long[] bits = new long[in.readInt()];
+                for (int i=0; i<bits.length; i++)
+                    bits[i] = in.readLong();
+                Entry entry = new Entry(cache.dir, name, length, modified, chunks);
+                if (!entry.dataFile.exists())
+                    return null;
+                entry.present.or(BitSet.valueOf(bits));
+                for (int i=0; i<chunks; i++)
+                    entry.crc[i] = in.readInt();
+                for (int c = entry.present.nextSetBit(0); c >= 0; c = entry.present.nextSetBit(c + 1))
+                    entry.bytes += cache.chunkLength(entry, c);
+                return entry;
+            } catch (IOException ex) {
+                return null;
+            }
+        }
+    }
+
+    // ************************************************************************* Stream
+
+    // Positional reads served chunk by chunk: from the cache file if the
+    // chunk is there, otherwise the whole chunk is read from the source,
+    // written to the cache file and then served
+    private class Stream extends SeekableStream implements PositionalReadable {
+        private final Entry entry;
+        private final SeekableStream source;
+        private long position = 0;
+
+        private Stream(Entry entry, SeekableStream source) {
+            this.entry = entry;
+            this.source = source;
+        }
+
+        @Override
+        public int read(long position, ByteBuffer dst) throws IOException {
+            if (position >= this.entry.length)
+                return -1;
+            int total = (int) Math.min(dst.remaining(), this.entry.length - position);
+            int done = 0;
+            while (done < total) {
+                long at = position + done;
+                int chunk = (int) (at / chunkSize);
+                int inChunk = (int) (at % chunkSize);
+                int n = Math.min(total - done, chunkLength(this.entry, chunk) - inChunk);
+                ByteBuffer part = dst.duplicate();
+                part.limit(part.position() + n);
+                if (!readCached(chunk, inChunk, part))
+                    readThrough(chunk, inChunk, part);
+                dst.position(dst.position() + n);
+                done += n;
+            }
+            return total;
+        }
+
+        private boolean readCached(int chunk, int inChunk, ByteBuffer part) throws IOException {
+            if (!this.entry.isPresent(chunk))
+                return false;
+            FileChannel channel = this.entry.channel();
+            if (channel == null)
+                return false;
+            long start = System.nanoTime();
+            int n = part.remaining();
+            int length = chunkLength(this.entry, chunk);
+            long base = (long) chunk * chunkSize;
+            try {
+                if (!this.entry.isVerified(chunk)) { // From an earlier run: check the whole chunk once
+                    ByteBuffer buf = chunkPool.acquire();
+                    try {
+                        buf.limit(length);
+                        fill(channel, base, buf);
+                        buf.flip();
+                        CRC32 crc = new CRC32();
+                        crc.update(buf.duplicate());
+                        if ((int) crc.getValue() != this.entry.getCrc(chunk)) {
+                            if (this.entry.setMissing(chunk))
+                                unreserve(this.entry, length);
+                            return false;
+                        }
+                        this.entry.setVerified(chunk);
+                        buf.limit(inChunk + part.remaining()).position(inChunk);
+                        part.put(buf);
+                    } finally {
+                        chunkPool.release(buf);
+                    }
+                } else {
+                    fill(channel, base + inChunk, part);
+                }
+            } catch (IOException ex) { // Evicted meanwhile (channel closed), or a bad disk: use the source
+                return false;
+            }
+            IoTrace.disk(System.nanoTime() - start, n);
+            hits.incrementAndGet();
+            return true;
+        }
+
+        private void readThrough(int chunk, int inChunk, ByteBuffer part) throws IOException {
+            misses.incrementAndGet();
+            int length = chunkLength(this.entry, chunk);
+            long base = (long) chunk * chunkSize;
+            ByteBuffer buf = chunkPool.acquire();
+            try {
+                buf.limit(length);
+                PositionalReadable source = (PositionalReadable) this.source;
+                while (buf.hasRemaining()) {
+                    if (source.read(base + buf.position(), buf) < 0)
+                        throw new IOException("Unexpected end of file in " + this.source.getSource());
+                }
+                buf.flip();
+                store(chunk, buf.duplicate());
+                buf.limit(inChunk + part.remaining()).position(inChunk);
+                part.put(buf);
+            } finally {
+                chunkPool.release(buf);
+            }
+        }
+
+        private void store(int chunk, ByteBuffer data) {
+            int length = data.remaining();
+            if (this.entry.isPresent(chunk) || !reserve(this.entry, length))
+                return;
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            boolean stored = false;
+            try {
+                FileChannel channel = this.entry.channel();
+                if (channel != null) {
+                    long at = (long) chunk * chunkSize;
+                    while (data.hasRemaining())
+                        at += channel.write(data, at);
+                    stored = this.entry.setPresent(chunk, (int) crc.getValue());
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(CiphertextDiskCache.class.getName()).log(Level.WARNING, "Disk cache write " + this.entry.dataFile, ex);
+            }
+            if (!stored)
+                unreserve(this.entry, length);
+        }
+
+        private void fill(FileChannel channel, long position, ByteBuffer dst) throws IOException {
+            while (dst.hasRemaining()) {
+                int n = channel.read(dst, position);
+                if (n < 0)
+                    throw new IOException("Short cache file " + this.entry.dataFile);
+                position += n;
+            }
+        }
+
+        @Override
+        public long length() {
+            return this.entry.length;
+        }
+
+        @Override
+        public long position() throws IOException {
+            return this.position;
+        }
+
+        @Override
+        public void seek(long position) throws IOException {
+            this.position = position;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0)
+                return 0;
+            int n = read(this.position, ByteBuffer.wrap(buffer, offset, length));
+            if (n > 0)
+                this.position += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == 1)?(b[0]&0xFF):-1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.source.close();
+            this.entry.save();
+        }
+
+        @Override
+        public boolean eof() throws IOException {
+            return this.position >= this.entry.length;
+        }
+
+        @Override
+        public String getSource() {
+            return this.source.getSource();
+        }
+    }
+}
@@ -21,12 +21,16 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.sql.DataSource;
@@ -37,7 +41,7 @@ import org.ini4j.Profile.Section;
  *
  * @author asenf
  */
-public class DatabaseExecutor {
+public class DatabaseExecutor implements ArchiveCatalogue {
     // Ini file location default
     private String iniFile = "fuse.ini";
     private String email = null;
@@ -46,6 +50,7 @@ public class DatabaseExecutor {
     
     // Database Pool
     private DataSource dbSource;
+    private int fetchSize = 1000; // Rows per round trip when streaming files
     
     // Query Strings (populated from ini file)
     private String datasets = null;
@@ -93,6 +98,8 @@ public class DatabaseExecutor {
                 pass = section.get("password");
             
             this.dbSource = MyDataSourceFactory.getHikariDataSource(instance, port, database, user, pass);
+            if (section.containsKey("fetch_size"))
+                this.fetchSize = Integer.parseInt(section.get("fetch_size").trim());
             
             // Populate query strings with it ----------------------------------
             Section queries = ini.get("queries");
@@ -195,82 +202,107 @@ public class DatabaseExecutor {
     }
         
     public EgaArchiveFile[] getFilesByDataset(String dataset) {
-        EgaArchiveFile[] result = null;
-        
+        ArrayList<EgaArchiveFile> resultset = new ArrayList<>();
+        if (!streamFilesByDataset(dataset, resultset::add))
+            return null;
+        return resultset.toArray(new EgaArchiveFile[resultset.size()]);
+    }
+    
+    public EgaArchiveFile[] getFilesByEmail(String email) {
+        ArrayList<EgaArchiveFile> resultset = new ArrayList<>();
+        if (!streamFilesByEmail(email, resultset::add))
+            return null;
+        return resultset.toArray(new EgaArchiveFile[resultset.size()]);
+    }
+
+    // Streaming versions: each file is handed to the consumer as its row
+    // arrives; false if the query failed (possibly after some files)
+    public boolean streamFilesByDataset(String dataset, Consumer<EgaArchiveFile> consumer) {
+        return streamFiles(this.files_by_dataset, dataset, consumer);
+    }
+
+    public boolean streamFilesByEmail(String email, Consumer<EgaArchiveFile> consumer) {
+        return streamFiles(this.files_by_email, email, consumer);
+    }
+    
+    // -------------------------------------------------------------------------
+    // --- Catalogue for the file system ---------------------------------------
+    // -------------------------------------------------------------------------
+
+    // Datasets approved for the user of this executor (all datasets for '*')
+    @Override
+    public String[] listDatasets() {
+        if (this.email == null || this.email.equals("*"))
+            return getDatasets();
+        return getDatasetsByEmail(this.email);
+    }
+
+    @Override
+    public boolean streamFiles(String dataset, Consumer<EgaArchiveFile> consumer) {
+        return streamFilesByDataset(dataset, consumer);
+    }
+
+    // -------------------------------------------------------------------------
+    // --- DB Access Functions -------------------------------------------------
+    // -------------------------------------------------------------------------
+
+    // Run a files_* query with one parameter. Outside autocommit the driver
+    // reads through a server-side cursor, [fetchSize] rows at a time, so the
+    // full result set is never held in memory
+    private boolean streamFiles(String query, String param, Consumer<EgaArchiveFile> consumer) {
+        boolean result = false;
+
         Connection conn = createConnection();
         if (conn != null) {
             PreparedStatement ps = null;
             ResultSet rs = null;
             try {
-                ArrayList<EgaArchiveFile> resultset = new ArrayList<>();
-                
-                ps = conn.prepareStatement(this.files_by_dataset);
-                ps.setString(1, dataset);
+                conn.setAutoCommit(false);
+                ps = conn.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                ps.setFetchSize(this.fetchSize);
+                ps.setString(1, param);
 
                 // Execute query
                 rs = ps.executeQuery();
-                
-                // Loop over results: stable_id, file_name, index_name, size
+
+                // Loop over results: file_name, archive_path [, size [, modified]]
+                int columns = rs.getMetaData().getColumnCount();
                 while (rs.next()) {
-                    String fileName = rs.getString(1);
-                    String fileArchivePath = rs.getString(2);
-                    
-                    resultset.add(new EgaArchiveFile(fileName, fileArchivePath, this.password, this.AES_bits));
+                    consumer.accept(toArchiveFile(rs, columns));
                 }
-                                
-                // Place result in Array
-                result = resultset.toArray(new EgaArchiveFile[resultset.size()]);
+                conn.commit();
+                result = true;
             } catch (SQLException ex) {
                 Logger.getLogger(DatabaseExecutor.class.getName()).log(Level.SEVERE, null, ex);
             } finally {
                 closeQuitely(rs);
-                closeQuitely(ps);
+                closeQuitely(ps); // Pool rolls back an open transaction
             }
         }
-        
+
         return result;
     }
-    
-    public EgaArchiveFile[] getFilesByEmail(String email) {
-        EgaArchiveFile[] result = null;
-        
-        Connection conn = createConnection();
-        if (conn != null) {
-            PreparedStatement ps = null;
-            ResultSet rs = null;
-            try {
-                ArrayList<EgaArchiveFile> resultset = new ArrayList<>();
-                
-                ps = conn.prepareStatement(this.files_by_email);
-                ps.setString(1, email);
 
-                // Execute query
-                rs = ps.executeQuery();
-                
-                // Loop over results: stable_id, file_name, index_name, size
-                while (rs.next()) {
-                    String fileName = rs.getString(1);
-                    String fileArchivePath = rs.getString(2);
+    // One catalogue row: the optional size and last-modified columns save a
+    // metadata round trip to archive storage per file
+    private EgaArchiveFile toArchiveFile(ResultSet rs, int columns) throws SQLException {
+        String fileName = rs.getString(1);
+        String fileArchivePath = rs.getString(2);
 
-                    resultset.add(new EgaArchiveFile(fileName, fileArchivePath, this.password, this.AES_bits));
-                }
-                
-                // Place result in Array
-                result = resultset.toArray(new EgaArchiveFile[resultset.size()]);
-            } catch (SQLException ex) {
-                Logger.getLogger(DatabaseExecutor.class.getName()).log(Level.SEVERE, null, ex);
-            } finally {
-                closeQuitely(rs);
-                closeQuitely(ps);
-            }
+        EgaArchiveFile f = new EgaArchiveFile(fileName, fileArchivePath, this.password, this.AES_bits);
+        if (columns >= 3) {
+            long size = rs.getLong(3);
+            if (!rs.wasNull())
+                f.setFileSize(size);
         }
-        
-        return result;
+        if (columns >= 4) {
+            Timestamp modified = rs.getTimestamp(4);
+            if (modified != null)
+                f.setFileModified(modified.getTime());
+        }
+        return f;
     }
-    
-    // -------------------------------------------------------------------------
-    // --- DB Access Functions -------------------------------------------------
-    // -------------------------------------------------------------------------
+
 
     private Connection createConnection() {
         Connection connection = null;
@@ -431,9 +463,7 @@ public class DatabaseExecutor {
 
                 String userpass = path[1];
                 
-                // Java bug : http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=6459815
-                String encoding = new sun.misc.BASE64Encoder().encode (userpass.getBytes());
-                encoding = encoding.replaceAll("\n", "");  
+                String encoding = Base64.getEncoder().encodeToString(userpass.getBytes(StandardCharsets.UTF_8));
                 
                 String basicAuth = "Basic " + encoding;
                 connection.setRequestProperty ("Authorization", basicAuth);
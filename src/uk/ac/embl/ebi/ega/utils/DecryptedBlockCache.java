@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Cache of decrypted, fixed-size blocks of archive files, shared by all open
+ * files. Blocks are identified by archive path and block number and are held
+ * in direct (off-heap) memory, so a large cache does not add to GC pressure.
+ * The cache is split into segments, each with its own lock, slabs and LRU
+ * list. Slabs are allocated as a segment fills, so direct memory is only
+ * committed for blocks actually cached, not for the whole budget at mount.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author asenf
+ */
+public class DecryptedBlockCache {
+
+    public static final int DEFAULT_BLOCK_SIZE = 131072;
+    private static final int MIN_BLOCK_SIZE = 4096;
+    private static final int SEGMENTS = 16;
+    private static final long MAX_SLAB = 1L << 26; // Direct memory allocated at a time
+
+    private final int blockSize;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    public DecryptedBlockCache(long budget, int blockSize) {
+        if (blockSize != usableBlockSize(blockSize))
+            throw new IllegalArgumentException("Block size " + blockSize + ": must be a multiple of 16 from " +
+                    MIN_BLOCK_SIZE + " to " + MAX_SLAB);
+        this.blockSize = blockSize;
+        long slots = Math.max(budget / blockSize, SEGMENTS);
+        this.segments = new Segment[SEGMENTS];
+        for (int i=0; i<SEGMENTS; i++)
+            this.segments[i] = new Segment((int) (slots / SEGMENTS), blockSize);
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    // Nearest block size the cache takes: a multiple of the AES block size
+    // (16) that fits in a slab; the default for 0 or less
+    public static int usableBlockSize(int blockSize) {
+        if (blockSize <= 0)
+            return DEFAULT_BLOCK_SIZE;
+        return (int) Math.min(Math.max(blockSize, MIN_BLOCK_SIZE), MAX_SLAB) & ~15;
+    }
+
+    // Copy cached bytes of block [block] starting at [offset] into dst; -1 on a miss
+    public int get(String path, long block, int offset, ByteBuffer dst) {
+        BlockKey key = new BlockKey(path, block);
+        int n = segmentFor(key).get(key, offset, dst);
+        if (n < 0)
+            this.misses.incrementAndGet();
+        else
+            this.hits.incrementAndGet();
+        return n;
+    }
+
+    public boolean contains(String path, long block) {
+        BlockKey key = new BlockKey(path, block);
+        return segmentFor(key).contains(key);
+    }
+
+    // Store the remaining bytes of src (at most one block) as block [block]
+    public void put(String path, long block, ByteBuffer src) {
+        BlockKey key = new BlockKey(path, block);
+        segmentFor(key).put(key, src);
+    }
+
+    // Drop all blocks of one archive file (e.g. after it was replaced)
+    public void invalidate(String path) {
+        for (Segment s : this.segments)
+            s.invalidate(path);
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    public long getCapacity() {
+        long capacity = 0;
+        for (Segment s : this.segments)
+            capacity += s.slotCount() * (long)this.blockSize;
+        return capacity;
+    }
+
+    public long getUsed() {
+        long used = 0;
+        for (Segment s : this.segments)
+            used += s.used() * (long)this.blockSize;
+        return used;
+    }
+
+    private Segment segmentFor(BlockKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return this.segments[h & (SEGMENTS-1)];
+    }
+
+    // ************************************************************************* Segment
+
+    private class Segment {
+        private final LinkedHashMap<BlockKey, Slot> map = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+        private final ArrayList<Slot> free = new ArrayList<>();
+        private final int slotCount;
+        private final int blockSize;
+        private int allocated = 0; // Slots in slabs allocated so far
+        private boolean exhausted = false; // Direct memory ran out: stop growing
+
+        private Segment(int slotCount, int blockSize) {
+            this.slotCount = slotCount;
+            this.blockSize = blockSize;
+        }
+
+        // Next slab of free slots, once all allocated ones are in use; false
+        // if the segment is at its size (or out of direct memory)
+        private boolean grow() {
+            if (this.allocated >= this.slotCount || this.exhausted)
+                return false;
+            int n = (int) Math.min(Math.max(1, MAX_SLAB / this.blockSize), this.slotCount - this.allocated);
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(n * this.blockSize);
+            } catch (OutOfMemoryError ex) { // -XX:MaxDirectMemorySize: reuse what there is
+                this.exhausted = true;
+                return false;
+            }
+            for (int i=0; i<n; i++) {
+                slab.limit((i+1) * this.blockSize).position(i * this.blockSize);
+                this.free.add(new Slot(slab.slice()));
+            }
+            this.allocated += n;
+            return true;
+        }
+
+        private synchronized int get(BlockKey key, int offset, ByteBuffer dst) {
+            Slot slot = this.map.get(key);
+            if (slot == null)
+                return -1;
+            if (offset >= slot.length)
+                return 0;
+            int n = Math.min(slot.length - offset, dst.remaining());
+            slot.data.limit(offset + n).position(offset);
+            dst.put(slot.data);
+            return n;
+        }
+
+        private synchronized boolean contains(BlockKey key) {
+            return this.map.containsKey(key);
+        }
+
+        private synchronized void put(BlockKey key, ByteBuffer src) {
+            Slot slot = this.map.get(key);
+            if (slot == null) {
+                if (this.free.isEmpty() && !grow()) {
+                    if (this.map.isEmpty())
+                        return;
+                    Iterator<Map.Entry<BlockKey, Slot>> eldest = this.map.entrySet().iterator();
+                    slot = eldest.next().getValue();
+                    eldest.remove();
+                    evictions.incrementAndGet();
+                } else {
+                    slot = this.free.remove(this.free.size()-1);
+                }
+                this.map.put(key, slot);
+            }
+            int n = Math.min(src.remaining(), slot.data.capacity());
+            int pos = src.position(), lim = src.limit();
+            src.limit(pos + n);
+            slot.data.clear();
+            slot.data.put(src);
+            src.limit(lim).position(pos); // leave src as it was handed in
+            slot.length = n;
+        }
+
+        private synchronized void invalidate(String path) {
+            Iterator<Map.Entry<BlockKey, Slot>> iter = this.map.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<BlockKey, Slot> e = iter.next();
+                if (e.getKey().path.equals(path)) {
+                    this.free.add(e.getValue());
+                    iter.remove();
+                }
+            }
+        }
+
+        private int slotCount() {
+            return this.slotCount;
+        }
+
+        private synchronized int used() {
+            return this.map.size();
+        }
+    }
+
+    private static class Slot {
+        private final ByteBuffer data;
+        private int length;
+
+        private Slot(ByteBuffer data) {
+            this.data = data;
+            this.length = 0;
+        }
+    }
+
+    private static final class BlockKey {
+        private final String path;
+        private final long block;
+
+        private BlockKey(String path, long block) {
+            this.path = path;
+            this.block = block;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.path.hashCode() + (int) (this.block ^ (this.block >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BlockKey))
+                return false;
+            BlockKey other = (BlockKey) obj;
+            return this.block == other.block && this.path.equals(other.path);
+        }
+    }
+}
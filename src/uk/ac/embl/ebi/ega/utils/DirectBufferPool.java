@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author asenf
+ *
+ * Pool of equally sized direct ByteBuffers, so the read path does not
+ * allocate (and later free) native memory for every request.
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger(0);
+
+    public DirectBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    // Returned buffer is cleared: position 0, limit = capacity
+    public ByteBuffer acquire() {
+        ByteBuffer buf = this.pool.poll();
+        if (buf == null)
+            return ByteBuffer.allocateDirect(this.bufferSize);
+        this.pooled.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.capacity() != this.bufferSize)
+            return;
+        if (this.pooled.incrementAndGet() <= this.maxPooled)
+            this.pool.offer(buf);
+        else
+            this.pooled.decrementAndGet(); // Pool is full: leave it to the GC
+    }
+}
@@ -26,6 +26,8 @@ public class EgaArchiveFile {
     private String fileKey = null;
     private int fileAESBits = 128;
     private boolean isEncrypted = false;
+    private long fileSize = -1; // Size of the archive file in bytes; -1: unknown
+    private long fileModified = 0; // Last modified, ms since epoch; 0: unknown
 
     public EgaArchiveFile(String fileName, String fileArchivePath, String fileKey, int fileAESBits) {
         this.fileName = fileName;
@@ -51,6 +53,14 @@ public class EgaArchiveFile {
         this.fileAESBits = fileAESKeyBits;
     }
 
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public void setFileModified(long fileModified) {
+        this.fileModified = fileModified;
+    }
+
     public String getFileName() {
         return this.fileName;
     }
@@ -67,6 +77,14 @@ public class EgaArchiveFile {
         return this.fileAESBits;
     }
     
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public long getFileModified() {
+        return this.fileModified;
+    }
+
     public boolean isEncrypted() {
         return this.isEncrypted;
     }
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Columnar table of archive files. Each file is a row number: attributes are
+ * kept in primitive arrays, names and archive paths in byte arenas where each
+ * string only stores what differs from the one before it (front coding, with
+ * every 8th string, BUCKET, stored in full). There is no object per file, which
+ * keeps the heap small and cheap to collect at millions of files.
+ *
+ * Rows are appended while a table is built and are never moved afterwards;
+ * removing a file only marks its row. Once built and published, a table is
+ * read without locks; only the attribute columns change in place.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ *
+ * @author asenf
+ */
+public class FileTable {
+
+    private static final int BUCKET = 8; // Strings per front-coding bucket
+    private static final byte DELETED = 1;
+    private static final byte REVALIDATING = 2;
+
+    private final long created = System.nanoTime();
+    private int count = 0;
+
+    // Columns
+    private long[] size; // Plaintext bytes; -1: not known yet
+    private long[] modified; // ms since epoch
+    private int[] checked; // s after [created] the attributes were last checked
+    private int[] key; // Index into keys; -1: not encrypted
+    private short[] bits;
+    private byte[] flags;
+    private int[] hash; // of the name
+    private final Strings names = new Strings();
+    private final Strings paths = new Strings();
+    private final ArrayList<String> keys = new ArrayList<>(); // Distinct keys (usually one)
+
+    // Name lookup: open addressing, row + 1 per slot (0: empty)
+    private int[] slots;
+
+    public FileTable() {
+        this(1024);
+    }
+    public FileTable(int capacity) {
+        capacity = Math.max(capacity, 16);
+        this.size = new long[capacity];
+        this.modified = new long[capacity];
+        this.checked = new int[capacity];
+        this.key = new int[capacity];
+        this.bits = new short[capacity];
+        this.flags = new byte[capacity];
+        this.hash = new int[capacity];
+        this.slots = new int[Integer.highestOneBit(capacity) * 4];
+    }
+
+    // Append a file; -1 if the name is in the table already (first one wins)
+    public int add(String name, String path, String fileKey, int fileBits, long fileSize, long fileModified) {
+        int h = mix(name.hashCode());
+        if (find(name, h) >= 0)
+            return -1;
+        if (this.count == this.size.length)
+            grow();
+        int row = this.count;
+        this.size[row] = fileSize;
+        this.modified[row] = fileModified;
+        this.checked[row] = now();
+        this.key[row] = keyIndex(fileKey);
+        this.bits[row] = (short) fileBits;
+        this.hash[row] = h;
+        this.names.add(row, name.getBytes(StandardCharsets.UTF_8));
+        this.paths.add(row, path.getBytes(StandardCharsets.UTF_8));
+        if ((row + 1) * 2 > this.slots.length)
+            rehash(this.slots.length * 2);
+        insert(row);
+        this.count++;
+        return row;
+    }
+
+    // Row of a file by name; -1 if there is none (or it was deleted)
+    public int find(String name) {
+        int row = find(name, mix(name.hashCode()));
+        return (row >= 0 && (this.flags[row] & DELETED) == 0)?row:-1;
+    }
+
+    public int size() {
+        return this.count;
+    }
+
+    public String getName(int row) {
+        return this.names.get(row);
+    }
+
+    public String getPath(int row) {
+        return this.paths.get(row);
+    }
+
+    // Key of an encrypted file; null if it is not encrypted
+    public String getKey(int row) {
+        int k = this.key[row];
+        return (k < 0)?null:this.keys.get(k);
+    }
+
+    public boolean isEncrypted(int row) {
+        return this.key[row] >= 0;
+    }
+
+    public int getBits(int row) {
+        return this.bits[row];
+    }
+
+    public long getSize(int row) {
+        return this.size[row];
+    }
+
+    public long getModified(int row) {
+        return this.modified[row];
+    }
+
+    // New attributes, e.g. from a stat of the archive file
+    public void setAttributes(int row, long fileSize, long fileModified) {
+        this.modified[row] = fileModified;
+        this.size[row] = fileSize;
+        this.checked[row] = now();
+    }
+
+    // Nanoseconds since the attributes of [row] were set
+    public long sinceChecked(int row) {
+        return System.nanoTime() - this.created - this.checked[row] * 1000000000L;
+    }
+
+    // Only one revalidation of a row at a time
+    public synchronized boolean startRevalidation(int row) {
+        if ((this.flags[row] & REVALIDATING) != 0)
+            return false;
+        this.flags[row] |= REVALIDATING;
+        return true;
+    }
+
+    public synchronized void endRevalidation(int row) {
+        this.flags[row] &= ~REVALIDATING;
+    }
+
+    public boolean isDeleted(int row) {
+        return (this.flags[row] & DELETED) != 0;
+    }
+
+    public synchronized void delete(int row) {
+        this.flags[row] |= DELETED;
+    }
+
+    // Same archive file and key, and the same size (if both are known)
+    public boolean sameFile(int row, FileTable other, int otherRow) {
+        if (this.bits[row] != other.bits[otherRow] || !getPath(row).equals(other.getPath(otherRow)))
+            return false;
+        String k = getKey(row);
+        if ((k == null)?other.getKey(otherRow) != null:!k.equals(other.getKey(otherRow)))
+            return false;
+        return this.size[row] < 0 || other.size[otherRow] < 0 || this.size[row] == other.size[otherRow];
+    }
+
+    // Names of all rows that are not deleted, in row order
+    public void forEachName(final ObjIntConsumer<String> consumer) {
+        this.names.forEach(this.count, new ObjIntConsumer<String>() {
+            @Override
+            public void accept(String name, int row) {
+                if ((flags[row] & DELETED) == 0)
+                    consumer.accept(name, row);
+            }
+        });
+    }
+
+    // Bytes held by the table (arrays and arenas, not object headers)
+    public long getHeapBytes() {
+        long bytes = this.size.length * (8L + 8 + 4 + 4 + 2 + 1 + 4) + this.slots.length * 4L;
+        bytes += this.names.heapBytes() + this.paths.heapBytes();
+        for (String k : this.keys)
+            bytes += 40 + k.length() * 2L;
+        return bytes;
+    }
+
+    // Drop spare capacity once the table is complete
+    public void trim() {
+        int capacity = Math.max(this.count, 16);
+        resize(capacity);
+        this.names.trim();
+        this.paths.trim();
+    }
+
+    // *************************************************************************
+
+    private int now() {
+        return (int) ((System.nanoTime() - this.created) / 1000000000L);
+    }
+
+    private int keyIndex(String fileKey) {
+        if (fileKey == null)
+            return -1;
+        int k = this.keys.indexOf(fileKey);
+        if (k < 0) {
+            k = this.keys.size();
+            this.keys.add(fileKey);
+        }
+        return k;
+    }
+
+    private int find(String name, int h) {
+        int mask = this.slots.length - 1;
+        for (int i = h & mask; this.slots[i] != 0; i = (i + 1) & mask) {
+            int row = this.slots[i] - 1;
+            if (this.hash[row] == h && this.names.equalsAt(row, name))
+                return row;
+        }
+        return -1;
+    }
+
+    private void insert(int row) {
+        int mask = this.slots.length - 1;
+        int i = this.hash[row] & mask;
+        while (this.slots[i] != 0)
+            i = (i + 1) & mask;
+        this.slots[i] = row + 1;
+    }
+
+    private void rehash(int capacity) {
+        this.slots = new int[capacity];
+        for (int row = 0; row < this.count; row++)
+            insert(row);
+    }
+
+    private void grow() {
+        resize(this.size.length + (this.size.length >> 1));
+    }
+
+    private void resize(int capacity) {
+        this.size = Arrays.copyOf(this.size, capacity);
+        this.modified = Arrays.copyOf(this.modified, capacity);
+        this.checked = Arrays.copyOf(this.checked, capacity);
+        this.key = Arrays.copyOf(this.key, capacity);
+        this.bits = Arrays.copyOf(this.bits, capacity);
+        this.flags = Arrays.copyOf(this.flags, capacity);
+        this.hash = Arrays.copyOf(this.hash, capacity);
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // ************************************************************************* Strings
+
+    // Front-coded string column: per string the length of the prefix shared
+    // with the previous one and the remaining bytes (UTF-8, varint lengths)
+    private static final class Strings {
+        private byte[] data = new byte[4096];
+        private int length = 0;
+        private int[] buckets = new int[64]; // Offset of every BUCKET-th string
+        private byte[] last = new byte[0];
+
+        private void add(int index, byte[] b) {
+            int shared = 0;
+            if (index % BUCKET == 0) {
+                if (index / BUCKET == this.buckets.length)
+                    this.buckets = Arrays.copyOf(this.buckets, this.buckets.length * 2);
+                this.buckets[index / BUCKET] = this.length;
+            } else {
+                int max = Math.min(this.last.length, b.length);
+                while (shared < max && this.last[shared] == b[shared])
+                    shared++;
+            }
+            if (this.length + b.length - shared + 10 > this.data.length)
+                this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.length + b.length + 10));
+            putVarint(shared);
+            putVarint(b.length - shared);
+            System.arraycopy(b, shared, this.data, this.length, b.length - shared);
+            this.length += b.length - shared;
+            this.last = b;
+        }
+
+        // Decode from the start of the bucket up to [index]
+        private String get(int index) {
+            byte[] d = this.data;
+            int pos = this.buckets[index / BUCKET];
+            byte[] buf = new byte[64];
+            int len = 0;
+            for (int i = index - index % BUCKET; i <= index; i++) {
+                int shared = 0, suffix = 0, shift = 0;
+                byte v;
+                do {
+                    v = d[pos++];
+                    shared |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                shift = 0;
+                do {
+                    v = d[pos++];
+                    suffix |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                if (shared + suffix > buf.length)
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, shared + suffix));
+                System.arraycopy(d, pos, buf, shared, suffix);
+                pos += suffix;
+                len = shared + suffix;
+            }
+            return new String(buf, 0, len, StandardCharsets.UTF_8);
+        }
+
+        // Compare without building a String: ASCII bytes are compared with
+        // the chars directly, anything else falls back to decoding
+        private boolean equalsAt(int index, String s) {
+            byte[] d = this.data;
+            int pos = this.buckets[index / BUCKET];
+            int match = 0; // Leading chars of s equal to the string decoded so far
+            int len = 0;
+            for (int i = index - index % BUCKET; i <= index; i++) {
+                int shared = 0, suffix = 0, shift = 0;
+                byte v;
+                do {
+                    v = d[pos++];
+                    shared |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                shift = 0;
+                do {
+                    v = d[pos++];
+                    suffix |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                match = Math.min(match, shared);
+                if (match == shared) {
+                    while (match < shared + suffix && match < s.length() && d[pos + match - shared] == s.charAt(match))
+                        match++;
+                    if (match < shared + suffix && d[pos + match - shared] < 0)
+                        return get(index).equals(s); // Not ASCII
+                }
+                pos += suffix;
+                len = shared + suffix;
+            }
+            return len == s.length() && match == len;
+        }
+
+        // All strings in order, decoding each once
+        private void forEach(int count, ObjIntConsumer<String> consumer) {
+            byte[] d = this.data;
+            byte[] buf = new byte[64];
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                int shared = 0, suffix = 0, shift = 0;
+                byte v;
+                do {
+                    v = d[pos++];
+                    shared |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                shift = 0;
+                do {
+                    v = d[pos++];
+                    suffix |= (v & 0x7f) << shift;
+                    shift += 7;
+                } while (v < 0);
+                if (shared + suffix > buf.length)
+                    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, shared + suffix));
+                System.arraycopy(d, pos, buf, shared, suffix);
+                pos += suffix;
+                consumer.accept(new String(buf, 0, shared + suffix, StandardCharsets.UTF_8), i);
+            }
+        }
+
+        private void putVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                this.data[this.length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            this.data[this.length++] = (byte) value;
+        }
+
+        private void trim() {
+            this.data = Arrays.copyOf(this.data, this.length);
+            this.last = new byte[0];
+        }
+
+        private long heapBytes() {
+            return this.data.length + this.buckets.length * 4L;
+        }
+    }
+}
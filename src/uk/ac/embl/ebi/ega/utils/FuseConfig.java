@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.ini4j.Ini;
+import org.ini4j.Profile.Section;
+
+/**
+ *
+ * @author asenf
+ *
+ * Tuning settings of the file system itself (the [database] and [queries]
+ * sections are handled by DatabaseExecutor). Missing file, section or key
+ * always falls back to the supplied default.
+ */
+public class FuseConfig {
+    private Ini ini = null;
+
+    public FuseConfig(String iniFile) {
+        if (iniFile != null && (new File(iniFile)).exists()) {
+            try {
+                this.ini = new Ini(new File(iniFile));
+            } catch (IOException ex) {
+                Logger.getLogger(FuseConfig.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    public String get(String section, String key, String def) {
+        if (this.ini == null)
+            return def;
+        Section s = this.ini.get(section);
+        if (s == null || !s.containsKey(key))
+            return def;
+        String value = s.get(key);
+        return (value==null)?def:value.trim();
+    }
+
+    public long getLong(String section, String key, long def) {
+        String value = get(section, key, null);
+        if (value == null || value.length() == 0)
+            return def;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(FuseConfig.class.getName()).log(Level.WARNING, "[" + section + "] " + key + ": not a number: " + value);
+            return def;
+        }
+    }
+
+    public int getInt(String section, String key, int def) {
+        return (int) getLong(section, key, def);
+    }
+
+    public boolean getBoolean(String section, String key, boolean def) {
+        String value = get(section, key, null);
+        if (value == null || value.length() == 0)
+            return def;
+        return value.equalsIgnoreCase("true") || value.equalsIgnoreCase("yes") || value.equals("1");
+    }
+}
@@ -16,13 +16,21 @@
 
 package uk.ac.embl.ebi.ega.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.SecretKey;
@@ -39,7 +47,7 @@ public final class Glue {
     private static Glue instance;
 
     private Glue() {
-        // Nothing to do here
+        new SecureRandom().nextBytes(this.keyCacheSalt);
     }
 
     public synchronized byte[] GenerateRandomString(int minLength, int maxLength, int minLCaseCount, int minUCaseCount, int minNumCount, int minSpecialCount) {
@@ -186,7 +194,109 @@ public final class Glue {
         return result;
     }
 
+    // Derived keys are cached: PBKDF2 is deliberately slow and the same few
+    // archive passwords are used for every open. Entries are keyed by a salted
+    // SHA-256 digest of (password, strength), never by the password itself.
+    private static final int KEY_CACHE_SIZE = 1024;
+    private final byte[] keyCacheSalt = new byte[32];
+    private final LinkedHashMap<KeyDigest, SecretKey> keyCache = new LinkedHashMap<KeyDigest, SecretKey>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KeyDigest, SecretKey> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+    // MessageDigest.getInstance() is a provider lookup: one digest per thread
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                Logger.getLogger(Glue.class.getName()).log(Level.SEVERE, null, ex);
+                return null; // No digest: no caching
+            }
+        }
+    };
+    private final AtomicLong keyCacheHits = new AtomicLong(0);
+    private final AtomicLong keyCacheMisses = new AtomicLong(0);
+
     public SecretKey getKey(char[] password, int pw_strength) {
+        KeyDigest digest = keyDigest(password, pw_strength);
+        if (digest != null) {
+            synchronized (this.keyCache) {
+                SecretKey key = this.keyCache.get(digest);
+                if (key != null) {
+                    this.keyCacheHits.incrementAndGet();
+                    return key;
+                }
+            }
+        }
+        this.keyCacheMisses.incrementAndGet();
+
+        SecretKey key = deriveKey(password, pw_strength); // outside the lock
+        if (digest != null && key != null) {
+            synchronized (this.keyCache) {
+                this.keyCache.put(digest, key);
+            }
+        }
+        return key;
+    }
+
+    public long getKeyCacheHits() {
+        return this.keyCacheHits.get();
+    }
+
+    public long getKeyCacheMisses() {
+        return this.keyCacheMisses.get();
+    }
+
+    public int getKeyCacheSize() {
+        synchronized (this.keyCache) {
+            return this.keyCache.size();
+        }
+    }
+
+    private KeyDigest keyDigest(char[] password, int pw_strength) {
+        MessageDigest md = SHA256.get();
+        if (md == null)
+            return null;
+        ByteBuffer pw = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        try {
+            md.update(this.keyCacheSalt);
+            md.update(pw);
+            md.update((byte)(pw_strength >>> 24));
+            md.update((byte)(pw_strength >>> 16));
+            md.update((byte)(pw_strength >>> 8));
+            md.update((byte)pw_strength);
+            return new KeyDigest(md.digest());
+        } finally {
+            if (pw.hasArray())
+                Arrays.fill(pw.array(), (byte)0);
+        }
+    }
+
+    // Key cache entry: the digest bytes, compared by content
+    private static final class KeyDigest {
+        private final byte[] digest;
+        private final int hash;
+
+        private KeyDigest(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof KeyDigest) && Arrays.equals(this.digest, ((KeyDigest) o).digest);
+        }
+    }
+
+    private SecretKey deriveKey(char[] password, int pw_strength) {
         // Key Generation
         byte[] salt = {(byte)-12, (byte)34, (byte)1, (byte)0, (byte)-98, (byte)223, (byte)78, (byte)21};                
         SecretKeyFactory factory = null;
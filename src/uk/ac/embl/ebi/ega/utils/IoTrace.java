@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Time spent waiting for archive storage, decrypting, deriving keys and
+ * copying cached data, measured where it happens and added up per thread as
+ * well as globally. A request marks the thread's totals when it starts;
+ * the since*() values then tell how its time was split.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author asenf
+ */
+public final class IoTrace {
+    private static final ThreadLocal<IoTrace> CURRENT = new ThreadLocal<IoTrace>() {
+        @Override
+        protected IoTrace initialValue() {
+            return new IoTrace();
+        }
+    };
+    private static final LongAdder DISK = new LongAdder();
+    private static final LongAdder DISK_BYTES = new LongAdder();
+    private static final LongAdder DECRYPT = new LongAdder();
+    private static final LongAdder KEY = new LongAdder();
+
+    // This thread's totals (ns), only ever written by the thread itself,
+    // and their values at the last mark()
+    private long disk = 0, diskMark = 0;
+    private long decrypt = 0, decryptMark = 0;
+    private long key = 0, keyMark = 0;
+    private long copy = 0, copyMark = 0;
+
+    private IoTrace() {
+    }
+
+    public static IoTrace current() {
+        return CURRENT.get();
+    }
+
+    // Start of a request on this thread
+    public static IoTrace begin() {
+        IoTrace t = CURRENT.get();
+        t.diskMark = t.disk;
+        t.decryptMark = t.decrypt;
+        t.keyMark = t.key;
+        t.copyMark = t.copy;
+        return t;
+    }
+
+    // [nanos] spent reading [bytes] from storage
+    public static void disk(long nanos, long bytes) {
+        CURRENT.get().disk += nanos;
+        DISK.add(nanos);
+        if (bytes > 0)
+            DISK_BYTES.add(bytes);
+    }
+
+    public static void decrypt(long nanos) {
+        CURRENT.get().decrypt += nanos;
+        DECRYPT.add(nanos);
+    }
+
+    // Password to key (PBKDF2, or a cache lookup)
+    public static void key(long nanos) {
+        CURRENT.get().key += nanos;
+        KEY.add(nanos);
+    }
+
+    // Block cache lookups and copies into the caller's buffer
+    public static void copy(long nanos) {
+        CURRENT.get().copy += nanos;
+    }
+
+    public long getDisk() {
+        return this.disk;
+    }
+
+    public long getDecrypt() {
+        return this.decrypt;
+    }
+
+    // This thread, since begin()
+    public long sinceDisk() {
+        return this.disk - this.diskMark;
+    }
+
+    public long sinceDecrypt() {
+        return this.decrypt - this.decryptMark;
+    }
+
+    public long sinceKey() {
+        return this.key - this.keyMark;
+    }
+
+    public long sinceCopy() {
+        return this.copy - this.copyMark;
+    }
+
+    // All threads, since start
+    public static long getTotalDisk() {
+        return DISK.sum();
+    }
+
+    public static long getTotalDiskBytes() {
+        return DISK_BYTES.sum();
+    }
+
+    public static long getTotalDecrypt() {
+        return DECRYPT.sum();
+    }
+
+    public static long getTotalKey() {
+        return KEY.sum();
+    }
+}
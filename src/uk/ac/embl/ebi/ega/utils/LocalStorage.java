@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.File;
+import java.io.IOException;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ *
+ * Archive files on a local or network file system: read with positional
+ * FileChannel reads, or memory-mapped in segments of [segmentSize].
+ */
+public class LocalStorage implements StorageBackend {
+    private final boolean mapFiles;
+    private final long segmentSize;
+
+    public LocalStorage(boolean mapFiles, long segmentSize) {
+        this.mapFiles = mapFiles;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public SeekableStream open(String path) throws IOException {
+        File file = new File(path);
+        return this.mapFiles?new SeekableMappedFileStream(file, this.segmentSize):new SeekableChannelStream(file);
+    }
+
+    @Override
+    public long[] stat(String path) {
+        File file = new File(path);
+        return new long[]{file.length(), file.lastModified()};
+    }
+}
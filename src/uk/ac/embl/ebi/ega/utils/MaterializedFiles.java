@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Small files decrypted in full, shared by all open handles of a file: the
+ * first open loads the plaintext in one pass, further opens take a reference,
+ * and the last close frees it. The total held is bounded by a budget; a file
+ * that does not fit is not materialised (and read through its stream).
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *
+ * @author asenf
+ */
+public class MaterializedFiles {
+
+    // Fills the plaintext of a file into dst (positioned at 0, limit = size)
+    public interface Loader {
+        public void load(ByteBuffer dst) throws IOException;
+    }
+
+    private final long maxFileSize;
+    private final long budget;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    private long used = 0; // Guarded by entries
+    private final AtomicLong loads = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    public MaterializedFiles(long maxFileSize, long budget) {
+        this.maxFileSize = maxFileSize;
+        this.budget = budget;
+    }
+
+    public boolean accepts(long size) {
+        return size > 0 && size <= this.maxFileSize && size <= this.budget;
+    }
+
+    // Plaintext of [path] with a reference taken, loading it if no handle
+    // holds it yet; null if it does not fit in the budget or fails to load
+    public Entry acquire(String path, long size, Loader loader) {
+        if (!accepts(size))
+            return null;
+        Entry entry;
+        synchronized (this.entries) {
+            entry = this.entries.get(path);
+            if (entry != null && entry.size != size) {
+                this.entries.remove(path); // Changed: handles holding it keep the old copy
+                entry.detached = true;
+                entry = null;
+            }
+            if (entry == null) {
+                if (this.used + size > this.budget) {
+                    this.rejected.incrementAndGet();
+                    return null;
+                }
+                entry = new Entry(path, (int) size);
+                this.entries.put(path, entry);
+                this.used += size;
+            }
+            entry.refs++;
+        }
+
+        // Load outside of the map lock; later opens of the same file wait here
+        synchronized (entry) {
+            if (entry.data == null && !entry.failed) {
+                byte[] data = new byte[entry.size];
+                try {
+                    loader.load(ByteBuffer.wrap(data));
+                    entry.data = data;
+                    this.loads.incrementAndGet();
+                } catch (IOException | RuntimeException ex) {
+                    Logger.getLogger(MaterializedFiles.class.getName()).log(Level.WARNING, "Materialising " + StorageBackends.redact(path) + " failed", ex);
+                    entry.failed = true;
+                }
+            }
+        }
+        if (entry.failed) {
+            release(entry);
+            return null;
+        }
+        return entry;
+    }
+
+    // Drop the reference of one handle; the last one frees the plaintext
+    public void release(Entry entry) {
+        synchronized (this.entries) {
+            if (--entry.refs > 0)
+                return;
+            if (!entry.detached)
+                this.entries.remove(entry.path);
+            entry.detached = true;
+            this.used -= entry.size;
+        }
+    }
+
+    // The file changed: new opens load it again
+    public void invalidate(String path) {
+        synchronized (this.entries) {
+            Entry entry = this.entries.remove(path);
+            if (entry != null)
+                entry.detached = true;
+        }
+    }
+
+    public long getUsed() {
+        synchronized (this.entries) {
+            return this.used;
+        }
+    }
+
+    public int getFiles() {
+        synchronized (this.entries) {
+            return this.entries.size();
+        }
+    }
+
+    public long getLoads() {
+        return this.loads.get();
+    }
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    // ************************************************************************* Entry
+
+    public static class Entry {
+        private final String path;
+        private final int size;
+        private volatile byte[] data = null;
+        private volatile boolean failed = false;
+        private int refs = 0;              // Guarded by entries
+        private boolean detached = false;  // Removed from entries (replaced or freed)
+
+        private Entry(String path, int size) {
+            this.path = path;
+            this.size = size;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+    }
+}
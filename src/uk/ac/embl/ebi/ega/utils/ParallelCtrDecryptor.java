@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * AES-CTR decryption of large ranges on a fork-join pool. In CTR mode the
+ * counter of every 16 byte block follows from the original IV, so a range
+ * can be cut into chunks that are decrypted independently (each worker has
+ * its own Cipher) and in place. Ranges below the threshold are decrypted by
+ * the caller alone, where the pool hand-off would cost more than it saves.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ *
+ * @author asenf
+ */
+public class ParallelCtrDecryptor {
+
+    public static final int DEFAULT_THRESHOLD = 1048576;
+    public static final int DEFAULT_CHUNK = 262144;
+    private static final int SCRATCH_SIZE = 16384;
+
+    private static volatile ParallelCtrDecryptor instance =
+            new ParallelCtrDecryptor(Runtime.getRuntime().availableProcessors(), DEFAULT_THRESHOLD, DEFAULT_CHUNK);
+
+    // Per worker thread: cipher, IV and scratch arrays
+    private static final ThreadLocal<Worker> WORKERS = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+    private final int chunk;
+
+    public ParallelCtrDecryptor(int threads, int threshold, int chunk) {
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.threshold = threshold;
+        this.chunk = Math.max(16, (chunk / 16) * 16);
+    }
+
+    public static ParallelCtrDecryptor getInstance() {
+        return instance;
+    }
+
+    // Replace the process-wide decryptor (e.g. with settings from fuse.ini)
+    public static synchronized void configure(int threads, int threshold, int chunk) {
+        ParallelCtrDecryptor old = instance;
+        instance = new ParallelCtrDecryptor(threads, threshold, chunk);
+        old.pool.shutdown();
+    }
+
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    // Decrypt data (position..limit, ciphertext of the plaintext range that
+    // starts at [position]) in place; buffer position and limit are unchanged
+    public void decrypt(SecretKey key, byte[] iv, long position, ByteBuffer data) throws GeneralSecurityException {
+        int length = data.remaining();
+        if (length < this.threshold) {
+            decryptRange(key, iv, position, data, data.position(), length);
+            return;
+        }
+        Task task = new Task(key, iv, position, data, data.position(), length);
+        this.pool.invoke(task);
+        if (task.failure != null)
+            throw task.failure;
+    }
+
+    private static void decryptRange(SecretKey key, byte[] iv, long position, ByteBuffer data, int index, int length) throws GeneralSecurityException {
+        Worker w = WORKERS.get();
+        long block = position / 16; // Only based on AES Block Size of 16 bytes!
+        int skip = (int) (position % 16);
+        System.arraycopy(iv, 0, w.iv, 0, 16);
+        SeekableCipherStream_256.byte_increment_fast(w.iv, block * 16);
+        w.cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(w.iv));
+        if (skip > 0) // consume keystream up to the desired start
+            w.cipher.update(w.scratchIn, 0, skip, w.scratchOut, 0);
+
+        ByteBuffer in = data.duplicate(), out = data.duplicate();
+        in.limit(index + length).position(index);
+        out.limit(index + length).position(index);
+        while (in.hasRemaining()) {
+            int k = Math.min(in.remaining(), SCRATCH_SIZE);
+            in.get(w.scratchIn, 0, k);
+            // Separate arrays: on the same array JCE copies the input first
+            int m = w.cipher.update(w.scratchIn, 0, k, w.scratchOut, 0);
+            out.put(w.scratchOut, 0, m);
+        }
+    }
+
+    // Split until a range fits into one chunk
+    private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final SecretKey key;
+        private final byte[] iv;
+        private final long position;
+        private final ByteBuffer data;
+        private final int index, length;
+        private volatile GeneralSecurityException failure;
+
+        private Task(SecretKey key, byte[] iv, long position, ByteBuffer data, int index, int length) {
+            this.key = key;
+            this.iv = iv;
+            this.position = position;
+            this.data = data;
+            this.index = index;
+            this.length = length;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.length <= chunk) {
+                try {
+                    decryptRange(this.key, this.iv, this.position, this.data, this.index, this.length);
+                } catch (GeneralSecurityException ex) {
+                    this.failure = ex;
+                }
+                return;
+            }
+            int half = ((this.length / 2) / chunk) * chunk;
+            if (half == 0)
+                half = chunk;
+            Task left = new Task(this.key, this.iv, this.position, this.data, this.index, half);
+            Task right = new Task(this.key, this.iv, this.position + half, this.data, this.index + half, this.length - half);
+            invokeAll(left, right);
+            this.failure = (left.failure != null)?left.failure:right.failure;
+        }
+    }
+
+    private static class Worker {
+        private final byte[] iv = new byte[16];
+        private final byte[] scratchIn = new byte[SCRATCH_SIZE];
+        private final byte[] scratchOut = new byte[SCRATCH_SIZE];
+        private final Cipher cipher;
+
+        private Worker() {
+            try {
+                this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author asenf
+ *
+ * Streams that can fill a (direct) ByteBuffer from an absolute position,
+ * without a seek and without going through an intermediate byte[].
+ */
+public interface PositionalReadable {
+
+    // Read up to dst.remaining() bytes starting at [position]; returns the
+    // number of bytes read, or -1 if position is at or beyond end of file.
+    // Does not change the position of the stream.
+    public int read(long position, ByteBuffer dst) throws IOException;
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Sequential access detection for one open file. Every read is reported via
+ * onRead(); as long as reads continue where the previous one ended the
+ * readahead window doubles (up to a maximum), on a random access it shrinks
+ * to a quarter and eventually switches off. onRead() returns the range that
+ * should be prefetched next, so that the prefetched data always extends one
+ * window beyond the reader.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+/**
+ *
+ * @author asenf
+ */
+public class ReadAhead {
+    private final long minWindow;
+    private final long maxWindow;
+
+    private long nextExpected = -1; // offset right after the previous read
+    private long window = 0;        // current window size; 0: no readahead
+    private long prefetchedTo = 0;  // end of the range already scheduled
+
+    // Statistics: sequential reads that fell entirely into prefetched data
+    private long reads = 0;
+    private long hits = 0;
+
+    public ReadAhead(long minWindow, long maxWindow) {
+        this.minWindow = minWindow;
+        this.maxWindow = Math.max(minWindow, maxWindow);
+    }
+
+    // Returns {from, to} to prefetch (to exclusive), or null
+    public synchronized long[] onRead(long offset, long length) {
+        long end = offset + length;
+        this.reads++;
+        long[] range = null;
+        if (offset == this.nextExpected) { // sequential
+            if (this.window > 0 && end <= this.prefetchedTo)
+                this.hits++;
+            this.window = (this.window == 0)?this.minWindow:Math.min(this.window * 2, this.maxWindow);
+            long target = end + this.window;
+            long from = Math.max(this.prefetchedTo, end);
+            if (target > from)
+                range = new long[]{from, target};
+            this.prefetchedTo = Math.max(this.prefetchedTo, target);
+        } else { // random access: back off
+            this.window = this.window / 4;
+            if (this.window < this.minWindow)
+                this.window = 0;
+            this.prefetchedTo = end;
+        }
+        this.nextExpected = end;
+        return range;
+    }
+
+    public synchronized long getWindow() {
+        return this.window;
+    }
+
+    public synchronized long getReads() {
+        return this.reads;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized double getHitRate() {
+        return (this.reads == 0)?0.0:(double)this.hits / this.reads;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Alignment index (.bai, .csi or .crai) of a BAM or CRAM file, reduced to
+ * what region prefetching needs: which file ranges belong together. A
+ * region query first jumps to the start of one chunk of the region; given
+ * that offset, prefetchRanges() returns the other file ranges a query for
+ * the same region will read next:
+ *
+ *  - BAI/CSI: the chunk found belongs to a bin, i.e. a genomic interval; the
+ *    ranges are the chunks of all bins overlapping that interval, as a
+ *    reader of the index would compute them (each chunk extends to the end
+ *    of its last BGZF block, at most 64 KB past its end offset)
+ *  - CRAI: the slices of all containers overlapping the alignment span of
+ *    the entry found
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+
+/**
+ *
+ * @author asenf
+ */
+public abstract class RegionIndex {
+    private static final int MAX_BLOCK = 65536; // Largest BGZF block
+
+    // No usable index
+    public static final RegionIndex NONE = new RegionIndex() {
+        @Override
+        public long[] prefetchRanges(long offset, long length, long fileSize, long maxBytes) {
+            return null;
+        }
+    };
+
+    // {from, to, from, to, ...} (to exclusive) beyond the read at [offset,
+    // offset+length), at most [maxBytes] in total; null if the read does not
+    // start a chunk of the index
+    public abstract long[] prefetchRanges(long offset, long length, long fileSize, long maxBytes);
+
+    // Index file contents by name (extension), or null if not recognised
+    public static RegionIndex parse(String name, byte[] data) throws IOException {
+        if (data.length > 2 && (data[0] & 0xFF) == 0x1f && (data[1] & 0xFF) == 0x8b)
+            data = gunzip(data); // .csi and .crai are (BGZF) gzip compressed
+        String lower = name.toLowerCase();
+        if (lower.endsWith(".crai"))
+            return Crai.parse(data);
+        ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8)
+            return null;
+        int magic = b.getInt();
+        if (magic == 0x01494142) // "BAI\1"
+            return Binned.parse(b, 14, 5, false);
+        if (magic == 0x01495343) { // "CSI\1"
+            int minShift = b.getInt(), depth = b.getInt();
+            int aux = b.getInt();
+            b.position(b.position() + aux); // auxiliary data
+            return Binned.parse(b, minShift, depth, true);
+        }
+        return null;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(data), 65536)) {
+            byte[] buf = new byte[65536];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    // Sort [from, to) pairs, merge overlaps, cap the total
+    static long[] merge(long[] ranges, int n, long maxBytes) {
+        if (n == 0)
+            return null;
+        long[][] pairs = new long[n / 2][];
+        for (int i=0; i<n; i+=2)
+            pairs[i / 2] = new long[]{ranges[i], ranges[i+1]};
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long[] result = new long[n];
+        int k = 0;
+        long total = 0;
+        for (long[] p : pairs) {
+            if (k > 0 && p[0] <= result[k-1]) {
+                long end = Math.max(result[k-1], p[1]);
+                total += end - result[k-1];
+                result[k-1] = end;
+            } else {
+                result[k++] = p[0];
+                result[k++] = p[1];
+                total += p[1] - p[0];
+            }
+            if (total >= maxBytes) {
+                result[k-1] -= total - maxBytes;
+                break;
+            }
+        }
+        return Arrays.copyOf(result, k);
+    }
+
+    // ************************************************************************* BAI, CSI
+
+    private static class Binned extends RegionIndex {
+        private final int minShift, depth;
+        // Bins of all references: reference r has bins refFirst[r] .. refFirst[r+1]-1,
+        // sorted by number; bin i has chunks chunkFirst[i] .. chunkFirst[i+1]-1
+        private final int[] refFirst;
+        private final int[] binNumber;
+        private final int[] binRef;
+        private final int[] chunkFirst;
+        private final long[] chunkBegin; // virtual offsets
+        private final long[] chunkEnd;
+        // Chunk start (file offset of its first BGZF block) << 24 | bin, sorted
+        private final long[] starts;
+
+        private Binned(int minShift, int depth, int[] refFirst, int[] binNumber, int[] binRef, int[] chunkFirst,
+                long[] chunkBegin, long[] chunkEnd) {
+            this.minShift = minShift;
+            this.depth = depth;
+            this.refFirst = refFirst;
+            this.binNumber = binNumber;
+            this.binRef = binRef;
+            this.chunkFirst = chunkFirst;
+            this.chunkBegin = chunkBegin;
+            this.chunkEnd = chunkEnd;
+            int bins = binNumber.length;
+            long[] s = new long[chunkBegin.length];
+            int n = 0;
+            for (int bin=0; bin<bins && bins < (1 << 24); bin++) {
+                for (int c=chunkFirst[bin]; c<chunkFirst[bin+1]; c++) {
+                    long offset = chunkBegin[c] >>> 16;
+                    if (offset < (1L << 40))
+                        s[n++] = (offset << 24) | bin;
+                }
+            }
+            this.starts = Arrays.copyOf(s, n);
+            Arrays.sort(this.starts);
+        }
+
+        private static Binned parse(ByteBuffer b, int minShift, int depth, boolean csi) {
+            int maxBin = ((1 << (3 * (depth + 1))) - 1) / 7; // and above: pseudo-bins
+            int refs = b.getInt();
+            int[] refFirst = new int[refs + 1];
+            IntList binNumber = new IntList(), binRef = new IntList(), chunkFirst = new IntList();
+            LongList chunkBegin = new LongList(), chunkEnd = new LongList();
+            for (int r=0; r<refs; r++) {
+                refFirst[r] = binNumber.size;
+                int bins = b.getInt();
+                long[] sorted = new long[bins]; // bin << 32 | position of its record
+                int[] positions = new int[bins];
+                for (int i=0; i<bins; i++) {
+                    positions[i] = b.position();
+                    int bin = b.getInt();
+                    if (csi)
+                        b.getLong(); // loffset
+                    int chunks = b.getInt();
+                    b.position(b.position() + chunks * 16);
+                    sorted[i] = ((long) bin << 32) | i;
+                }
+                Arrays.sort(sorted);
+                int end = b.position();
+                for (long entry : sorted) {
+                    int bin = (int) (entry >>> 32);
+                    if (bin >= maxBin)
+                        continue;
+                    b.position(positions[(int) entry] + 4 + (csi?8:0));
+                    int chunks = b.getInt();
+                    binNumber.add(bin);
+                    binRef.add(r);
+                    chunkFirst.add(chunkBegin.size);
+                    for (int c=0; c<chunks; c++) {
+                        chunkBegin.add(b.getLong());
+                        chunkEnd.add(b.getLong());
+                    }
+                }
+                b.position(end);
+                if (!csi) {
+                    int intervals = b.getInt();
+                    b.position(b.position() + intervals * 8); // linear index
+                }
+            }
+            refFirst[refs] = binNumber.size;
+            chunkFirst.add(chunkBegin.size);
+            return new Binned(minShift, depth, refFirst, binNumber.toArray(), binRef.toArray(), chunkFirst.toArray(),
+                    chunkBegin.toArray(), chunkEnd.toArray());
+        }
+
+        @Override
+        public long[] prefetchRanges(long offset, long length, long fileSize, long maxBytes) {
+            // First chunk starting within the read
+            int i = Arrays.binarySearch(this.starts, offset << 24);
+            if (i < 0)
+                i = -i - 1;
+            if (i >= this.starts.length || (this.starts[i] >>> 24) >= offset + length)
+                return null;
+            int bin = (int) (this.starts[i] & 0xFFFFFF);
+            int ref = this.binRef[bin];
+
+            // Its genomic interval, and the chunks of all bins overlapping it
+            int number = this.binNumber[bin];
+            int level = 0;
+            while (level < this.depth && number >= first(level + 1))
+                level++;
+            int shift = this.minShift + 3 * (this.depth - level);
+            long beg = (long) (number - first(level)) << shift;
+            long end = beg + (1L << shift) - 1;
+
+            long[] ranges = new long[64];
+            int n = 0;
+            long readEnd = offset + length;
+            for (int l=0, s=this.minShift + 3*this.depth; l<=this.depth; l++, s-=3) {
+                for (long b = first(l) + (beg >> s); b <= first(l) + (end >> s); b++) {
+                    int k = find(ref, (int) b);
+                    if (k < 0)
+                        continue;
+                    for (int c=this.chunkFirst[k]; c<this.chunkFirst[k+1]; c++) {
+                        long from = Math.max(this.chunkBegin[c] >>> 16, readEnd);
+                        long to = Math.min((this.chunkEnd[c] >>> 16) + MAX_BLOCK, fileSize);
+                        if ((this.chunkBegin[c] >>> 16) < offset || from >= to)
+                            continue; // Before the jump: not part of this query
+                        if (n == ranges.length)
+                            ranges = Arrays.copyOf(ranges, n * 2);
+                        ranges[n++] = from;
+                        ranges[n++] = to;
+                    }
+                }
+            }
+            return merge(ranges, n, maxBytes);
+        }
+
+        // First bin number of a level
+        private static int first(int level) {
+            return ((1 << (3 * level)) - 1) / 7;
+        }
+
+        private int find(int ref, int number) {
+            int lo = this.refFirst[ref], hi = this.refFirst[ref + 1] - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (this.binNumber[mid] < number)
+                    lo = mid + 1;
+                else if (this.binNumber[mid] > number)
+                    hi = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+    }
+
+    // ************************************************************************* CRAI
+
+    private static class Crai extends RegionIndex {
+        // One entry per slice, in file order
+        private final int[] seq;
+        private final long[] start, end; // alignment span
+        private final long[] from, to;   // file range of the slice
+
+        private Crai(int[] seq, long[] start, long[] end, long[] from, long[] to) {
+            this.seq = seq;
+            this.start = start;
+            this.end = end;
+            this.from = from;
+            this.to = to;
+        }
+
+        // Lines: sequence, alignment start, span, container offset, slice offset, slice size
+        private static Crai parse(byte[] data) throws IOException {
+            IntList seq = new IntList();
+            LongList start = new LongList(), end = new LongList(), from = new LongList(), to = new LongList();
+            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data), StandardCharsets.US_ASCII));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.trim().split("\\s+");
+                if (f.length < 6)
+                    continue;
+                long container = Long.parseLong(f[3]);
+                seq.add(Integer.parseInt(f[0]));
+                start.add(Long.parseLong(f[1]));
+                end.add(Long.parseLong(f[1]) + Long.parseLong(f[2]));
+                from.add(container);
+                to.add(container + Long.parseLong(f[4]) + Long.parseLong(f[5]));
+            }
+            // File order
+            int n = seq.size;
+            Integer[] order = new Integer[n];
+            for (int i=0; i<n; i++)
+                order[i] = i;
+            final long[] f = from.toArray();
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(f[a], f[b]);
+                }
+            });
+            int[] s = new int[n];
+            long[] st = new long[n], en = new long[n], fr = new long[n], t = new long[n];
+            for (int i=0; i<n; i++) {
+                int k = order[i];
+                s[i] = seq.data[k];
+                st[i] = start.data[k];
+                en[i] = end.data[k];
+                fr[i] = f[k];
+                t[i] = to.data[k];
+            }
+            return new Crai(s, st, en, fr, t);
+        }
+
+        @Override
+        public long[] prefetchRanges(long offset, long length, long fileSize, long maxBytes) {
+            int i = Arrays.binarySearch(this.from, offset);
+            if (i < 0)
+                i = -i - 1;
+            while (i > 0 && this.from[i-1] == offset) // First slice of a container
+                i--;
+            if (i >= this.from.length || this.from[i] >= offset + length)
+                return null;
+            int s = this.seq[i];
+            long beg = this.start[i], end = this.end[i];
+            long readEnd = offset + length;
+            long[] ranges = new long[64];
+            int n = 0;
+            for (int k=i; k<this.from.length; k++) {
+                if (this.seq[k] != s || this.start[k] >= end)
+                    break; // Slices of a sequence are in coordinate order
+                if (this.end[k] <= beg)
+                    continue;
+                long a = Math.max(this.from[k], readEnd), b = Math.min(this.to[k], fileSize);
+                if (a >= b)
+                    continue;
+                if (n == ranges.length)
+                    ranges = Arrays.copyOf(ranges, n * 2);
+                ranges[n++] = a;
+                ranges[n++] = b;
+            }
+            return merge(ranges, n, maxBytes);
+        }
+    }
+
+    // ************************************************************************* Growable arrays
+
+    private static class IntList {
+        private int[] data = new int[1024];
+        private int size = 0;
+
+        private void add(int v) {
+            if (this.size == this.data.length)
+                this.data = Arrays.copyOf(this.data, this.size * 2);
+            this.data[this.size++] = v;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+    }
+
+    private static class LongList {
+        private long[] data = new long[1024];
+        private int size = 0;
+
+        private void add(long v) {
+            if (this.size == this.data.length)
+                this.data = Arrays.copyOf(this.data, this.size * 2);
+            this.data[this.size++] = v;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * SeekableStream over a FileChannel. Next to the usual seek()/read() it
+ * supports positional reads into direct ByteBuffers, which go from the
+ * kernel straight into native memory.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ */
+public class SeekableChannelStream extends SeekableStream implements PositionalReadable {
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private long position;
+
+    public SeekableChannelStream(File file) throws FileNotFoundException {
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = this.raf.getChannel();
+        this.position = 0;
+    }
+
+    @Override
+    public long length() {
+        try {
+            return this.channel.size();
+        } catch (IOException ex) {
+            return this.file.length();
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        this.position = position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        int n = read(this.position, ByteBuffer.wrap(buffer, offset, length));
+        if (n > 0)
+            this.position += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == 1)?(b[0]&0xFF):-1;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long start = System.nanoTime();
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int n = this.channel.read(dst, position + total);
+            if (n < 0)
+                break;
+            total += n;
+        }
+        IoTrace.disk(System.nanoTime() - start, total);
+        return (total == 0 && dst.hasRemaining())?-1:total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+        this.raf.close();
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return this.position >= length();
+    }
+
+    @Override
+    public String getSource() {
+        return this.file.getAbsolutePath();
+    }
+}
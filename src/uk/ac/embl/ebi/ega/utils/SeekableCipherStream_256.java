@@ -24,14 +24,15 @@
 package uk.ac.embl.ebi.ega.utils;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import net.sf.samtools.seekablestream.SeekableStream;
 
@@ -39,17 +40,33 @@ import net.sf.samtools.seekablestream.SeekableStream;
  *
  * @author asenf
  */
-public class SeekableCipherStream_256 extends SeekableStream {
+public class SeekableCipherStream_256 extends SeekableStream implements PositionalReadable {
 
     public static final int DEFAULT_BUFFER_SIZE = 512000;
+    private static final int SCRATCH_SIZE = 16384;
+
+    // Ciphertext buffers for positional reads, shared by all streams
+    private static final DirectBufferPool CIPHERTEXT_POOL = new DirectBufferPool(131072, 256);
 
     final SeekableStream wrappedStream;
     Cipher cipher;
-    CipherInputStream incipher;
     long position;
     SecretKey skey_;
     byte[] orig_digest; // Original IV\
     int pw_strength;
+    private final long length; // Archive files do not change: no fstat per read
+
+    // Cipher state: plaintext position the keystream of [cipher] is at, and
+    // the position of the wrapped stream (-1: unknown). A read that starts
+    // where the last one ended just continues; anything else repositions.
+    private long cipherPos;
+    private long wrappedPos;
+    private final byte[] iv = new byte[16];
+    private final byte[] single = new byte[1];
+
+    // Reused scratch arrays (JCE works on arrays)
+    private final byte[] scratchIn = new byte[SCRATCH_SIZE];
+    private final byte[] scratchOut = new byte[SCRATCH_SIZE];
 
     public SeekableCipherStream_256(SeekableStream in, char[] password, int bufferSize) {
         this(in, password, bufferSize, 256);
@@ -58,6 +75,7 @@ public class SeekableCipherStream_256 extends SeekableStream {
         this.wrappedStream = in;
         this.position = 0;
         this.pw_strength = pw_strength;
+        this.length = in.length()-16; // subtract prepended IV
 
         // Initialization Vector
         byte[] iv = new byte[16];
@@ -70,108 +88,106 @@ public class SeekableCipherStream_256 extends SeekableStream {
         System.arraycopy(iv,0, this.orig_digest, 0, 16);
 
         // Key Generation
+        long start = System.nanoTime();
         this.skey_ = Glue.getInstance().getKey(password, pw_strength);
+        IoTrace.key(System.nanoTime() - start);
 
-        this.cipher = CipherStream_256.getCipher(password, false, pw_strength, this.orig_digest);
-        this.incipher = new CipherInputStream(this.wrappedStream, cipher);
+        this.cipher = CipherStream_256.getCipher(this.skey_, false, this.orig_digest);
+        this.cipherPos = 0;   // Fresh cipher starts at the first block
+        this.wrappedPos = 16; // ... and the IV has just been read
     }
     public SeekableCipherStream_256(SeekableStream in, char[] password) {
         this(in, password, DEFAULT_BUFFER_SIZE);
     }
 
+    // Seeking is lazy: the cipher is only repositioned by the next read, and
+    // only if that read does not continue where the cipher currently is
     @Override
     public void seek(long position) throws IOException {
         this.position = position;
-        this.wrappedStream.seek(position+16);
+    }
 
-        // Set position to start of current enclosing block
-        long position1 = ( position / 16 ) * 16; // Only based on AES Block Size of 16 bytes!
+    // Set counter and keystream offset of the cipher to plaintext [position]
+    private void positionCipher(long position) throws IOException {
+        if (position == this.cipherPos)
+            return;
+        long block = position / 16; // Only based on AES Block Size of 16 bytes!
+        int skip = (int) (position % 16);
 
-        // Reset the initialization vector to the correct block
-        byte[] newIV = new byte[this.orig_digest.length];
-        System.arraycopy(this.orig_digest, 0, newIV, 0, this.orig_digest.length); // preserved start value
-        byte_increment_fast(newIV, position1); // is there a better way??
-        IvParameterSpec ivSpec_new = new IvParameterSpec(newIV);
+        System.arraycopy(this.orig_digest, 0, this.iv, 0, 16);
+        byte_increment_fast(this.iv, block * 16);
         try {
-            //this.cipher.init(Cipher.ENCRYPT_MODE, this.skey_, ivSpec_new);
-            this.cipher.init(Cipher.DECRYPT_MODE, this.skey_, ivSpec_new);
-        } catch (InvalidKeyException ex) {
-            Logger.getLogger(SeekableCipherStream_256.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (InvalidAlgorithmParameterException ex) {
-            Logger.getLogger(SeekableCipherStream_256.class.getName()).log(Level.SEVERE, null, ex);
+            this.cipher.init(Cipher.DECRYPT_MODE, this.skey_, new IvParameterSpec(this.iv));
+            if (skip > 0) // consume keystream up to the desired start
+                this.cipher.update(this.scratchIn, 0, skip, this.scratchOut, 0);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException ex) {
+            this.cipherPos = -1;
+            throw new IOException(ex);
         }
-        this.incipher = new CipherInputStream(this.wrappedStream, cipher);
+        this.cipherPos = position;
     }
-    private static void byte_increment_fast(byte[] data, long increment) {
+
+    // Add [increment] bytes (i.e. increment/16 AES blocks) to a 128 bit big
+    // endian counter: constant time, no allocation
+    static void byte_increment_fast(byte[] data, long increment) {
         long countdown = increment / 16; // Count number of block updates
-        
-        ArrayList<Integer> digits_ = new ArrayList<Integer>();
-        int cnt = 0; long d = 256, cn = 0;
-        while (countdown > cn && d > 0) {
-            int l = (int) ((countdown % d) / (d/256));
-            digits_.add(l);
-            cn += (l*(d/256));
-            d *= 256;
-        }
-        int size = digits_.size();
-        int[] digits = new int[size];
-        for (int i=0; i<size; i++) {
-            digits[size-1-i] = digits_.get(i).intValue();
-        }
-        
-        int cur_pos = data.length-1, carryover = 0, delta = data.length-digits.length;
-        
-        for (int i=cur_pos; i>=delta; i--) { // Work on individual digits
-            int digit = digits[i-delta] + carryover; // convert to integer
-            int place = (int)(data[i]&0xFF); // convert data[] to integer
-            int new_place = digit+place;
-            if (new_place >= 256) carryover=1; else carryover=0;
-            data[i] = (byte) (new_place % 256);
+
+        long hi = 0, lo = 0;
+        for (int i=0; i<8; i++) {
+            hi = (hi << 8) | (data[i] & 0xFF);
+            lo = (lo << 8) | (data[i+8] & 0xFF);
         }
-        
-        // Deal with potential last carryovers
-        cur_pos -= digits.length;
-        while (carryover == 1 && cur_pos>= 0) {
-            data[cur_pos]++;
-            if (data[cur_pos]==0) carryover=1; else carryover=0;
-            cur_pos--;
+        long sum = lo + countdown;
+        if (Long.compareUnsigned(sum, lo) < 0) // carry into the upper half
+            hi++;
+        lo = sum;
+        for (int i=7; i>=0; i--) {
+            data[i] = (byte) hi;
+            data[i+8] = (byte) lo;
+            hi >>>= 8;
+            lo >>>= 8;
         }
     }
     
     @Override
     public long length() {
-        return this.wrappedStream.length()-16; // subtract prepended IV
+        return this.length;
     }
 
+    // Ciphertext is read into scratchIn and decrypted into the caller's
+    // buffer (JCE copies the input of an update on the same array)
     @Override
     public int read(byte[] buffer, int offset, int length) throws IOException {
-        //long position1 = ( (this.position+offset) / 16 ) * 16; // Only based on AES Block Size of 16 bytes! block-correct start pos
-        long position1 = ( (this.position) / 16 ) * 16; // Only based on AES Block Size of 16 bytes! block-correct start pos
-        long p = this.position; // remember desired start
-        seek(position1); // position at block-correct start to enable AES decryption
-
-        //int delta = (int) ((p+offset) - position1); // gap between block start and desired start
-        int delta = (int) (p-position1); // gap between block start and desired start
-        byte[] buf = new byte[length+delta]; // enough to hold all data plus delta
+        if (length == 0)
+            return 0;
+        if (this.position >= length())
+            return -1;
+        positionCipher(this.position);
+        if (this.wrappedPos != this.position + 16) {
+            this.wrappedStream.seek(this.position + 16);
+            this.wrappedPos = this.position + 16;
+        }
 
         int n = 0; // number of read bytes
-        int length1 = length + delta;
-        while (n < length1) {
-            //System.out.println(buf.length + "\t" + n + "\t" + (length1-n) + "\t" + length1);
-            final int count = this.incipher.read(buf, n, length1-n); // read into buffer directly; offset later will be: delta
-            if (count < 0) {
-                System.arraycopy(buf, delta, buffer, offset, (n-delta));
-                return (n-delta);
+        while (n < length) {
+            final int count = this.wrappedStream.read(this.scratchIn, 0, Math.min(length - n, SCRATCH_SIZE));
+            if (count < 0)
+                break;
+            long start = System.nanoTime();
+            try {
+                this.cipher.update(this.scratchIn, 0, count, buffer, offset + n);
+            } catch (ShortBufferException ex) {
+                this.cipherPos = -1;
+                throw new IOException(ex);
             }
+            IoTrace.decrypt(System.nanoTime() - start);
             n += count;
+            this.wrappedPos += count;
+            this.cipherPos += count;
         }
-        seek(p); // Reset actual position
-
-        System.arraycopy(buf, delta, buffer, offset, length);
-        assert (n-delta == length); // must match length
 
-        this.position += length;
-        return (n-delta); 
+        this.position += n;
+        return (n == 0)?-1:n;
     }
 
     @Override
@@ -181,7 +197,7 @@ public class SeekableCipherStream_256 extends SeekableStream {
 
     @Override
     public boolean eof() throws IOException {
-        return this.position >= this.wrappedStream.length();
+        return this.position >= length();
     }
 
     @Override
@@ -195,18 +211,103 @@ public class SeekableCipherStream_256 extends SeekableStream {
 
     @Override
     public int read() throws IOException {
-        byte[] buf = new byte[16];
-        
-        long position1 = ( (this.position) / 16 ) * 16;
+        int n = read(this.single, 0, 1);
+        return (n == 1)?(int)(this.single[0]&0xFF):-1; // return a proper int
+    }
+
+    // Decrypt from an absolute position straight into dst (e.g. native memory
+    // of the caller), reading ciphertext into pooled direct buffers. Does not
+    // move the stream position; not thread safe, like the rest of the stream.
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        if (position >= length())
+            return -1;
+        if (!(this.wrappedStream instanceof PositionalReadable))
+            return readThroughArray(position, dst);
+        PositionalReadable source = (PositionalReadable) this.wrappedStream;
+        if (dst.remaining() >= ParallelCtrDecryptor.getInstance().getThreshold())
+            return readParallel(source, position, dst);
+        positionCipher(position);
+
+        // A mapped file is decrypted directly from views of the mapping
+        SeekableMappedFileStream mapped = (this.wrappedStream instanceof SeekableMappedFileStream)?
+                (SeekableMappedFileStream) this.wrappedStream:null;
+        int total = 0;
+        ByteBuffer in = (mapped == null)?CIPHERTEXT_POOL.acquire():null;
+        try {
+            while (dst.hasRemaining()) {
+                ByteBuffer src;
+                if (mapped != null) {
+                    src = mapped.slice(position + total + 16, dst.remaining()); // +16: prepended IV
+                    if (src == null)
+                        break;
+                } else {
+                    in.clear();
+                    in.limit(Math.min(in.capacity(), dst.remaining()));
+                    int n = source.read(position + total + 16, in); // +16: prepended IV
+                    if (n <= 0)
+                        break;
+                    in.flip();
+                    src = in;
+                }
+                // Mapped: the page faults of the view are counted as decryption
+                long start = System.nanoTime();
+                while (src.hasRemaining()) {
+                    int k = Math.min(src.remaining(), SCRATCH_SIZE);
+                    src.get(this.scratchIn, 0, k);
+                    int m = this.cipher.update(this.scratchIn, 0, k, this.scratchOut, 0);
+                    dst.put(this.scratchOut, 0, m);
+                    total += m;
+                    this.cipherPos += m;
+                }
+                IoTrace.decrypt(System.nanoTime() - start);
+            }
+        } catch (ShortBufferException ex) {
+            this.cipherPos = -1;
+            throw new IOException(ex);
+        } finally {
+            CIPHERTEXT_POOL.release(in);
+        }
+        return (total == 0)?-1:total;
+    }
+
+    // Large ranges: ciphertext is read straight into dst, then decrypted there
+    // in parallel chunks. The cipher of this stream is not involved.
+    private int readParallel(PositionalReadable source, long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        ByteBuffer view = dst.duplicate();
+        view.limit(start + (int) Math.min(dst.remaining(), length() - position));
+        int total = 0;
+        while (view.hasRemaining()) {
+            int n = source.read(position + total + 16, view); // +16: prepended IV
+            if (n <= 0)
+                break;
+            total += n;
+        }
+        if (total == 0)
+            return -1;
+        view.flip().position(start);
+        long t = System.nanoTime();
+        try {
+            ParallelCtrDecryptor.getInstance().decrypt(this.skey_, this.orig_digest, position, view);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        IoTrace.decrypt(System.nanoTime() - t);
+        dst.position(start + total);
+        return total;
+    }
+
+    // Wrapped stream without positional reads: go through seek() and read()
+    private int readThroughArray(long position, ByteBuffer dst) throws IOException {
         long p = this.position;
-        seek(position1);
-        
-        this.incipher.read(buf);
-        
-        int offset = (int)(p-position1);
-        seek(p+1);
-        
-        return (int)(buf[offset]&0xFF); // return a proper int
+        byte[] buf = new byte[(int) Math.min(dst.remaining(), length() - position)];
+        seek(position);
+        int n = read(buf, 0, buf.length);
+        seek(p);
+        if (n > 0)
+            dst.put(buf, 0, n);
+        return n;
     }
 
     // New Addition in Sam Tools 1.86 - Unverified
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * SeekableStream over a file served by HttpStorage. Reads are split into
+ * ranges aligned to plaintext blocks: ciphertext of a block at k*B starts at
+ * k*B+16, after the IV, so ranges start at 16 + r*rangeSize (the IV is in a
+ * range of its own). The last range fetched is kept, so the small reads of
+ * a sequential reader cost one request per range, not one per read.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ */
+public class SeekableHttpStream extends SeekableStream implements PositionalReadable {
+    private static final int ORIGIN = 16; // IV size
+    private final HttpStorage storage;
+    private final HttpStorage.Location location;
+    private final int rangeSize;
+    private final long length;
+    private long position = 0;
+
+    // Last range fetched
+    private long cachedRange = Long.MIN_VALUE;
+    private byte[] cachedData = null;
+
+    SeekableHttpStream(HttpStorage storage, HttpStorage.Location location, long length) {
+        this.storage = storage;
+        this.location = location;
+        this.rangeSize = storage.getRangeSize();
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        this.position = position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        int n = read(this.position, ByteBuffer.wrap(buffer, offset, length));
+        if (n > 0)
+            this.position += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return (read(b, 0, 1) == 1)?(b[0]&0xFF):-1;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long size = this.length;
+        if (position >= size)
+            return -1;
+        int total = (int) Math.min(dst.remaining(), size - position);
+        long first = rangeOf(position), last = rangeOf(position + total - 1);
+        long start = System.nanoTime();
+        if (first == last) {
+            byte[] data = range(first);
+            dst.put(data, (int) (position - rangeStart(first)), total);
+        } else {
+            // Adjacent ranges in parallel (except the one kept), copied in
+            // order as they arrive; the trailing range is kept for the next read
+            ArrayList<Future<byte[]>> ranges = new ArrayList<>();
+            byte[] kept = cached(first);
+            for (long r = first; r <= last; r++) {
+                final long range = r;
+                ranges.add((r == first && kept != null)?null:this.storage.getFetchPool().submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return fetch(range);
+                    }
+                }));
+            }
+            int done = 0;
+            try {
+                byte[] data = null;
+                for (int i=0; i<ranges.size(); i++) {
+                    data = (ranges.get(i) == null)?kept:ranges.get(i).get();
+                    int at = (i == 0)?(int) (position - rangeStart(first)):0;
+                    int n = Math.min(total - done, data.length - at);
+                    dst.put(data, at, n);
+                    done += n;
+                }
+                keep(last, data);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted reading " + this.location);
+            } catch (ExecutionException ex) {
+                throw (ex.getCause() instanceof IOException)?(IOException) ex.getCause():new IOException(ex.getCause());
+            } finally {
+                for (Future<byte[]> f : ranges)
+                    if (f != null)
+                        f.cancel(false);
+            }
+        }
+        IoTrace.disk(System.nanoTime() - start, total);
+        return total;
+    }
+
+    // Range -1 is the IV, [0, 16)
+    private long rangeOf(long position) {
+        return Math.floorDiv(position - ORIGIN, (long) this.rangeSize);
+    }
+
+    private long rangeStart(long range) {
+        return Math.max(0, ORIGIN + range * this.rangeSize);
+    }
+
+    // Range [range], from the last one fetched if it is the same
+    private synchronized byte[] range(long range) throws IOException {
+        if (range != this.cachedRange) {
+            this.cachedData = fetch(range);
+            this.cachedRange = range;
+        }
+        return this.cachedData;
+    }
+
+    private synchronized byte[] cached(long range) {
+        return (range == this.cachedRange)?this.cachedData:null;
+    }
+
+    private synchronized void keep(long range, byte[] data) {
+        this.cachedData = data;
+        this.cachedRange = range;
+    }
+
+    private byte[] fetch(long range) throws IOException {
+        long from = rangeStart(range);
+        int n = (int) (Math.min(ORIGIN + (range + 1) * this.rangeSize, this.length) - from);
+        byte[] data = new byte[n];
+        this.storage.get(this.location, from, data, n);
+        return data;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.cachedRange = Long.MIN_VALUE;
+        this.cachedData = null;
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return this.position >= this.length;
+    }
+
+    @Override
+    public String getSource() {
+        return this.location.toString();
+    }
+}
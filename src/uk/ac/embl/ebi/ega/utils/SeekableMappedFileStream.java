@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * SeekableStream over a memory-mapped file. The file is mapped lazily in
+ * large segments (a single mapping is limited to 2 GB), so reads are plain
+ * memory copies without a system call, and decryption can work directly on
+ * views of the mapping (see slice()). Streams of the same file share the
+ * file's mappings, which are dropped when the last of them is closed; a file
+ * that was replaced or has grown since is mapped anew for new streams.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ */
+public class SeekableMappedFileStream extends SeekableStream implements PositionalReadable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+
+    // Mappings of open files, by absolute path
+    private static final HashMap<String, Mapping> MAPPINGS = new HashMap<>();
+
+    private final File file;
+    private final Mapping mapping;
+    private final long length;
+    private final long segmentSize;
+    private boolean closed = false;
+    private long position;
+
+    public SeekableMappedFileStream(File file) throws FileNotFoundException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+    public SeekableMappedFileStream(File file, long segmentSize) throws FileNotFoundException {
+        this.file = file;
+        this.mapping = acquire(file, Math.min(Math.max(segmentSize, 4096), Integer.MAX_VALUE));
+        this.length = this.mapping.length;
+        this.segmentSize = this.mapping.segmentSize;
+        this.position = 0;
+    }
+
+    private static Mapping acquire(File file, long segmentSize) throws FileNotFoundException {
+        String key = file.getAbsolutePath();
+        long size = file.length(), modified = file.lastModified();
+        synchronized (MAPPINGS) {
+            Mapping m = MAPPINGS.get(key);
+            if (m == null || m.length != size || m.modified != modified) { // Streams of the old one keep it
+                m = new Mapping(file, segmentSize);
+                MAPPINGS.put(key, m);
+            }
+            m.refs++;
+            return m;
+        }
+    }
+
+    // Mapped on first use; concurrent callers may both map, one mapping wins
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer seg = this.mapping.segments.get(index);
+        if (seg == null) {
+            long start = index * this.segmentSize;
+            long size = Math.min(this.segmentSize, this.length - start);
+            seg = this.mapping.channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            if (!this.mapping.segments.compareAndSet(index, null, seg))
+                seg = this.mapping.segments.get(index);
+        }
+        return seg;
+    }
+
+    // Read-only view of the mapping from [position], at most [length] bytes
+    // and never across a segment boundary (so it may be shorter); null at EOF
+    public ByteBuffer slice(long position, int length) throws IOException {
+        if (position >= this.length || length <= 0)
+            return null;
+        int index = (int) (position / this.segmentSize);
+        int offset = (int) (position % this.segmentSize);
+        ByteBuffer view = segment(index).duplicate();
+        view.position(offset);
+        view.limit((int) Math.min(view.capacity(), (long)offset + length));
+        return view;
+    }
+
+    @Override
+    public int read(long position, ByteBuffer dst) throws IOException {
+        long start = System.nanoTime(); // The copy takes the page faults
+        int total = 0;
+        while (dst.hasRemaining()) {
+            ByteBuffer view = slice(position + total, dst.remaining());
+            if (view == null)
+                break;
+            total += view.remaining();
+            dst.put(view);
+        }
+        IoTrace.disk(System.nanoTime() - start, total);
+        return (total == 0 && dst.hasRemaining())?-1:total;
+    }
+
+    @Override
+    public long length() {
+        return this.length;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return this.position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+        this.position = position;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0)
+            return 0;
+        int n = read(this.position, ByteBuffer.wrap(buffer, offset, length));
+        if (n > 0)
+            this.position += n;
+        return n;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer view = slice(this.position, 1);
+        if (view == null)
+            return -1;
+        this.position++;
+        return view.get() & 0xFF;
+    }
+
+    // The last stream of a file drops its mappings (they are unmapped when
+    // garbage collected) and closes the file
+    @Override
+    public void close() throws IOException {
+        String key = this.file.getAbsolutePath();
+        synchronized (MAPPINGS) {
+            if (this.closed)
+                return;
+            this.closed = true;
+            if (--this.mapping.refs > 0)
+                return;
+            if (MAPPINGS.get(key) == this.mapping)
+                MAPPINGS.remove(key);
+        }
+        this.mapping.channel.close();
+        this.mapping.raf.close();
+    }
+
+    @Override
+    public boolean eof() throws IOException {
+        return this.position >= this.length;
+    }
+
+    @Override
+    public String getSource() {
+        return this.file.getAbsolutePath();
+    }
+
+    // Open file and its segments, shared by the streams of one file
+    private static class Mapping {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final long length;
+        private final long modified;
+        private final long segmentSize;
+        private final AtomicReferenceArray<MappedByteBuffer> segments;
+        private int refs = 0;
+
+        private Mapping(File file, long segmentSize) throws FileNotFoundException {
+            this.modified = file.lastModified();
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = this.raf.getChannel();
+            this.segmentSize = segmentSize;
+            long size;
+            try {
+                size = this.channel.size();
+            } catch (IOException ex) {
+                size = file.length();
+            }
+            this.length = size;
+            this.segments = new AtomicReferenceArray<>((int) ((size + segmentSize - 1) / segmentSize));
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+import java.io.IOException;
+import net.sf.samtools.seekablestream.SeekableStream;
+
+/**
+ *
+ * @author asenf
+ *
+ * Where archive files are read from. Archive paths are handed in as the
+ * catalogue has them; the backend for a file is chosen by StorageBackends.
+ * Streams returned by open() also implement PositionalReadable.
+ */
+public interface StorageBackend {
+
+    // Raw (possibly encrypted) contents of an archive file
+    public SeekableStream open(String path) throws IOException;
+
+    // {size in bytes, last modified in ms since epoch} of an archive file;
+    // {0, 0} if it does not exist
+    public long[] stat(String path) throws IOException;
+}
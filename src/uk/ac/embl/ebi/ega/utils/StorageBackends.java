@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package uk.ac.embl.ebi.ega.utils;
+
+/**
+ *
+ * @author asenf
+ *
+ * The storage backend of each archive file, by the form of its archive path:
+ * http:// and https:// URLs are read with HttpStorage, everything else is a
+ * local path. Settings: [storage] (local files) and [http].
+ */
+public class StorageBackends {
+    private final LocalStorage local;
+    private final FuseConfig config;
+    private HttpStorage http = null; // Created with the first URL
+
+    public StorageBackends(FuseConfig config) {
+        this.config = config;
+        // [storage] source = channel | mmap
+        this.local = new LocalStorage(config.get("storage", "source", "channel").equalsIgnoreCase("mmap"),
+                config.getLong("storage", "mmap_segment_mb", SeekableMappedFileStream.DEFAULT_SEGMENT_SIZE >> 20) << 20);
+    }
+
+    public StorageBackend forPath(String path) {
+        return HttpStorage.isHttp(path)?http():this.local;
+    }
+
+    // Ranges default to the block size of the decrypted block cache
+    private synchronized HttpStorage http() {
+        if (this.http == null) {
+            int blockSize = DecryptedBlockCache.usableBlockSize(this.config.getInt("cache", "block_size", DecryptedBlockCache.DEFAULT_BLOCK_SIZE));
+            this.http = new HttpStorage(Math.max(1, this.config.getInt("http", "range_kb", blockSize / 1024)) * 1024,
+                    this.config.getInt("http", "threads", 16),
+                    this.config.getInt("http", "connect_timeout_ms", 10000),
+                    this.config.getInt("http", "read_timeout_ms", 60000));
+        }
+        return this.http;
+    }
+
+    // Archive path for log messages: a URL without its user info (HttpStorage
+    // takes basic authentication credentials from there)
+    public static String redact(String path) {
+        if (!HttpStorage.isHttp(path))
+            return path;
+        int start = path.indexOf("://") + 3, end = start;
+        while (end < path.length() && "/?#".indexOf(path.charAt(end)) < 0)
+            end++;
+        int at = path.lastIndexOf('@', end - 1);
+        return (at >= start)?path.substring(0, start) + path.substring(at + 1):path;
+    }
+
+    // File name of an archive path: last path component, without a query
+    public static String getName(String path) {
+        if (HttpStorage.isHttp(path)) {
+            int query = path.indexOf('?');
+            if (query >= 0)
+                path = path.substring(0, query);
+        }
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}